@@ -0,0 +1,255 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Bond;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Text key for the neighborhood of an atom: every atom within a number of
+ * bonds of it, and every bond between those atoms. Anything that only looks
+ * at that neighborhood gives the same answer for two atoms with the same key.
+ * <p>
+ * The key is a complete description of the neighborhood, so the same key
+ * always means the same neighborhood. Atoms are put in order by a
+ * Morgan-style invariant, so the same neighborhood usually gets the same key
+ * too, but symmetric atoms can still come out in different orders, which
+ * just gives a different key.
+ * </p>
+ * <p>
+ * Each atom is described by element, charge, implicit hydrogens, number of
+ * bonds, ring membership and whether it has an aromatic bond, so properties
+ * of the atoms at the edge that depend on their bonds outside the
+ * neighborhood are still covered. Each bond is described by its type,
+ * aromaticity and ring membership. Ring sizes aren't part of the key, since
+ * working them out costs more than most uses of the key save.
+ * </p>
+ */
+public class AtomEnvironment {
+
+	private static final int REFINE_ROUNDS = 3;
+
+	/**
+	 * @param rings index of the structure the atom is in
+	 * @param root
+	 * @param radius number of bonds from the root to include
+	 * @param maxAtoms largest neighborhood to make a key for
+	 * @return the key, or null if the neighborhood has more than maxAtoms atoms
+	 *         or includes an explicit hydrogen
+	 */
+	public static String key(RingIndex rings, Atom root, int radius, int maxAtoms){
+		Chemical c = rings.getChemical();
+		int r = rings.indexOf(root);
+		if(r<0){
+			return null;
+		}
+
+		//atoms in breadth first order, with their distance from the root
+		int[] depth = new int[c.getAtomCount()];
+		Arrays.fill(depth, -1);
+		List<Integer> atoms = new ArrayList<>();
+		depth[r]=0;
+		atoms.add(r);
+		for(int head=0;head<atoms.size();head++){
+			int a=atoms.get(head);
+			if(depth[a]==radius){
+				continue;
+			}
+			for(int n: rings.getNeighbors(a)){
+				if(depth[n]<0){
+					depth[n]=depth[a]+1;
+					atoms.add(n);
+					if(atoms.size()>maxAtoms){
+						return null;
+					}
+				}
+			}
+		}
+
+		int size=atoms.size();
+		int[] local = new int[c.getAtomCount()];
+		Arrays.fill(local, -1);
+		String[] labels = new String[size];
+		long[] inv = new long[size];
+		for(int i=0;i<size;i++){
+			int a=atoms.get(i);
+			local[a]=i;
+			Atom at = rings.getAtom(a);
+			if("H".equals(at.getSymbol())){
+				return null;
+			}
+			labels[i]=atomLabel(rings, a) + "@" + depth[a];
+			inv[i]=labels[i].hashCode();
+		}
+
+		//bond labels for the bonds inside the neighborhood, by local atom positions
+		String[][] bondLabels = new String[size][];
+		int[][] nbrs = new int[size][];
+		for(int i=0;i<size;i++){
+			int a=atoms.get(i);
+			int[] an = rings.getNeighbors(a);
+			int[] ab = rings.getNeighborBonds(a);
+			int count=0;
+			for(int n: an){
+				if(local[n]>=0){
+					count++;
+				}
+			}
+			nbrs[i]=new int[count];
+			bondLabels[i]=new String[count];
+			int k=0;
+			for(int j=0;j<an.length;j++){
+				if(local[an[j]]>=0){
+					nbrs[i][k]=local[an[j]];
+					bondLabels[i][k]=bondLabel(rings.getBond(ab[j]));
+					k++;
+				}
+			}
+		}
+
+		for(int round=0;round<REFINE_ROUNDS;round++){
+			long[] next = new long[size];
+			for(int i=0;i<size;i++){
+				long[] parts = new long[nbrs[i].length];
+				for(int k=0;k<parts.length;k++){
+					parts[k]=inv[nbrs[i][k]]*31 + bondLabels[i][k].hashCode();
+				}
+				Arrays.sort(parts);
+				long h=inv[i];
+				for(long p: parts){
+					h=h*1000003L ^ p;
+				}
+				next[i]=h;
+			}
+			inv=next;
+		}
+
+		long[] finalInv = inv;
+		Integer[] order = new Integer[size];
+		for(int i=0;i<size;i++){
+			order[i]=i;
+		}
+		//root first, then closest first, then by invariant
+		Arrays.sort(order, Comparator.<Integer>comparingInt(i->depth[atoms.get(i)])
+				.thenComparingLong(i->finalInv[i])
+				.thenComparing(i->labels[i]));
+		int[] rank = new int[size];
+		for(int i=0;i<size;i++){
+			rank[order[i]]=i;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<size;i++){
+			int li=order[i];
+			sb.append(labels[li]);
+			List<String> edges = new ArrayList<>();
+			for(int k=0;k<nbrs[li].length;k++){
+				int other=rank[nbrs[li][k]];
+				if(other<i){
+					edges.add(other + bondLabels[li][k]);
+				}
+			}
+			edges.sort(null);
+			for(String e: edges){
+				sb.append(',').append(e);
+			}
+			sb.append(';');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Symmetry classes of all the atoms of the structure, found by splitting
+	 * atoms with the same description by the classes of their neighbors,
+	 * until no more classes split. Symmetric atoms always end up in the same
+	 * class. Atoms that aren't symmetric almost always end up in different
+	 * ones, but some very regular structures can have atoms in the same
+	 * class that aren't.
+	 * @param rings index of the structure
+	 * @return the class of each atom, by atom position
+	 */
+	public static int[] symmetryClasses(RingIndex rings){
+		int n=rings.getChemical().getAtomCount();
+		String[] labels = new String[n];
+		for(int i=0;i<n;i++){
+			labels[i]=atomLabel(rings, i);
+		}
+		int[] classes = rank(labels);
+		int count=distinct(classes);
+		while(true){
+			for(int i=0;i<n;i++){
+				int[] an = rings.getNeighbors(i);
+				int[] ab = rings.getNeighborBonds(i);
+				String[] parts = new String[an.length];
+				for(int j=0;j<an.length;j++){
+					parts[j]=classes[an[j]] + bondLabel(rings.getBond(ab[j]));
+				}
+				Arrays.sort(parts);
+				labels[i]=classes[i] + ":" + String.join(",", parts);
+			}
+			int[] next = rank(labels);
+			int nextCount=distinct(next);
+			classes=next;
+			if(nextCount==count){
+				return classes;
+			}
+			count=nextCount;
+		}
+	}
+
+	//position of each label in the sorted distinct labels
+	private static int[] rank(String[] labels){
+		Map<String,Integer> ranks = new TreeMap<>();
+		for(String l: labels){
+			ranks.put(l, 0);
+		}
+		int r=0;
+		for(Map.Entry<String,Integer> e: ranks.entrySet()){
+			e.setValue(r++);
+		}
+		int[] out = new int[labels.length];
+		for(int i=0;i<labels.length;i++){
+			out[i]=ranks.get(labels[i]);
+		}
+		return out;
+	}
+
+	private static int distinct(int[] ranks){
+		int max=-1;
+		for(int r: ranks){
+			max=Math.max(max, r);
+		}
+		return max+1;
+	}
+
+	private static String atomLabel(RingIndex rings, int a){
+		Atom at = rings.getAtom(a);
+		boolean aromatic=false;
+		for(int b: rings.getNeighborBonds(a)){
+			if(rings.getBond(b).isAromatic()){
+				aromatic=true;
+				break;
+			}
+		}
+		return at.getSymbol()
+				+ "^" + at.getCharge()
+				+ "h" + at.getImplicitHCount()
+				+ "d" + rings.getNeighbors(a).length
+				+ (at.isInRing()?"r":"")
+				+ (aromatic?"a":"")
+				+ (at.isQueryAtom()?"q":"");
+	}
+
+	private static String bondLabel(Bond b){
+		return "[" + b.getBondType().ordinal()
+				+ (b.isAromatic()?"a":"")
+				+ (b.isInRing()?"r":"")
+				+ "]";
+	}
+}
@@ -10,6 +10,7 @@ import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import gov.fda.gsrs.chem.util.StreamUtil.Final;
@@ -18,8 +19,19 @@ import gov.nih.ncats.molwitch.Atom;
 import gov.nih.ncats.molwitch.Chemical;
 
 
+/**
+ * Feature predicates of one atom. An AtomTest made by a {@link MolGraph}
+ * answers them from that snapshot instead of from the atom, and so do the
+ * neighbors and bonds it gives. The snapshot makes only one of these per
+ * atom, so two of them from the same snapshot are equal only if they are
+ * the same object.
+ */
 public class AtomTest extends ChemWrapper<Atom>{
 	private final Atom ca;
+	private final MolGraph graph;
+	private final int index;
+	//of the wrapped atom, kept for ones from a snapshot
+	private final int hash;
 	
 	public static Stream<AtomTest> stream(Chemical c){
 		
@@ -30,29 +42,53 @@ public class AtomTest extends ChemWrapper<Atom>{
 	
 	public AtomTest(Atom ca2) {
 		this.ca=ca2;
+		this.graph=null;
+		this.index=-1;
+		this.hash=0;
 	}
+
+	AtomTest(MolGraph graph, int index) {
+		this.ca=graph.getAtom(index);
+		this.graph=graph;
+		this.index=index;
+		this.hash=this.wHashCode();
+	}
+
+	//the snapshot this answers from and the atom's position in it, null and -1 if none
+	MolGraph getGraph(){
+		return graph;
+	}
+
+	int getIndex(){
+		return index;
+	}
+
 	public boolean hasAromaticBond() {
-		
+		if(graph!=null)return graph.hasAromaticBond(index);
 		return ca.hasAromaticBond();
 	}
 
 	public String getAtomSymbol(){
+		if(graph!=null)return graph.getSymbol(index);
 		return ca.getSymbol();
 	}
 	
 	public boolean isAtomSymbol(String s){
+		if(graph!=null)return graph.isAtomSymbol(index, s);
 		return ca.getSymbol().equals(s);
 	}
 	
 	public boolean isRingAtom(){
-		return ca.isInRing();
+		return isInRing();
 	}
 	public boolean isInRing(){
+		if(graph!=null)return graph.isInRing(index);
 		return ca.isInRing();
 		
 	}
 	
 	public boolean isQueryAtom(){
+		if(graph!=null)return graph.isQueryAtom(index);
 		return ca.isQueryAtom();
 	}
 	
@@ -61,6 +97,7 @@ public class AtomTest extends ChemWrapper<Atom>{
 	 * @return
 	 */
 	public boolean isPeptideAmine(){
+		if(graph!=null)return graph.isPeptideAmine(index);
 		return isAtomSymbol("N") && hasNeighbor((cn)->cn.isCarbonyl() && cn.hasCarbon()) 
 				                 && hasNeighbor((cn)->cn.isCarbon() && !cn.isCarbonyl());
 	}
@@ -70,6 +107,7 @@ public class AtomTest extends ChemWrapper<Atom>{
 	
 	
 	public boolean isNitrosamineAtom(){
+		if(graph!=null)return graph.isNitrosamineAtom(index);
 		return     this.isNitrogen()
 				&& this.isNeutral()
 				&& this.getBonds().count()==2
@@ -78,17 +116,27 @@ public class AtomTest extends ChemWrapper<Atom>{
 	}
 	
 	public boolean hasCarbon(){
+		if(graph!=null)return graph.hasCarbon(index);
 		return hasNeighbor((ct)->ct.isCarbon());
 	}
 	public int countCarbon(){
+		if(graph!=null)return graph.countCarbon(index);
 		return countNeighbor((ct)->ct.isCarbon());
 	}
 
 	public Stream<BondTest> getBonds(){
+		if(graph!=null){
+			return IntStream.range(graph.firstNeighbor(index), graph.endNeighbor(index))
+					.mapToObj(k->graph.bondTest(graph.neighborBond(k)));
+		}
 		return ca.getBonds().stream().map(BondTest::of);
 	}
 	
 	public Stream<AtomTest> getNeighbors(){
+		if(graph!=null){
+			return IntStream.range(graph.firstNeighbor(index), graph.endNeighbor(index))
+					.mapToObj(k->graph.atomTest(graph.neighborAtom(k)));
+		}
 		return ca.getNeighbors()
 				.stream()
 				.map(AtomTest::of);
@@ -121,6 +169,17 @@ public class AtomTest extends ChemWrapper<Atom>{
 //	public AtomTest getFirstChain
 	
 	public AtomTest getBreadthFirstPathsUntil(Function<LinkedList<AtomTest>,Boolean> cont, Set<AtomTest> excludeThru){
+		if(graph!=null){
+			GraphSearch search = new GraphSearch(graph);
+			for(AtomTest ex: excludeThru){
+				int i = graph.indexOf(ex.get());
+				if(i>=0 && i!=index){
+					search.exclude(i);
+				}
+			}
+			search.search(index, Integer.MAX_VALUE, (s,a)->cont.apply(s.getPath(a)));
+			return this;
+		}
 		Set<AtomTest> already = new HashSet<>();
 		already.add(this);
 		already.addAll(excludeThru);
@@ -139,6 +198,7 @@ public class AtomTest extends ChemWrapper<Atom>{
 		
 		
 		while(!currentLayer.isEmpty()){
+			TimeLimiter.checkInterrupted();
 			
 			Set<AtomTest> ncurrentLayer =  currentLayer.stream()
 					    .map(ca->Tuple.of(ca,as.get(ca)))
@@ -175,22 +235,27 @@ public class AtomTest extends ChemWrapper<Atom>{
 		
 	
 	public boolean isCarbon(){
+		if(graph!=null)return graph.isCarbon(index);
 		return isAtomSymbol("C");
 	}
 	
 	public boolean isHalogen(){
+		if(graph!=null)return graph.isHalogen(index);
 		return isAtomSymbol("Cl") || isAtomSymbol("F") || isAtomSymbol("Br") || isAtomSymbol("I");
 	}
 	
 	
 	public boolean isHydrogen(){
+		if(graph!=null)return graph.isHydrogen(index);
 		return isAtomSymbol("H");
 	}
 	
 	public boolean isOxygen(){
+		if(graph!=null)return graph.isOxygen(index);
 		return isAtomSymbol("O");
 	}
 	public boolean isNitrogen(){
+		if(graph!=null)return graph.isNitrogen(index);
 		return isAtomSymbol("N");
 	}
 	
@@ -201,6 +266,10 @@ public class AtomTest extends ChemWrapper<Atom>{
 		if(this.equals(ca2)){
 			return 0;
 		}
+		if(graph!=null && graph.indexOf(ca2.get())>=0){
+			int d = new GraphSearch(graph).distance(index, graph.indexOf(ca2.get()), 9);
+			return (d<0)?Integer.MAX_VALUE:d;
+		}
 		int ndist = 1;
 		
 		Set<AtomTest> alreadySaw = new HashSet<AtomTest>();
@@ -284,9 +353,11 @@ public class AtomTest extends ChemWrapper<Atom>{
 	}
 	
 	public boolean isPhosphorus(){
+		if(graph!=null)return graph.isPhosphorus(index);
 		return isAtomSymbol("P");
 	}
 	public boolean isSulfur(){
+		if(graph!=null)return graph.isSulfur(index);
 		return isAtomSymbol("S");
 	}
 	
@@ -304,35 +375,43 @@ public class AtomTest extends ChemWrapper<Atom>{
 	}
 	
 	public boolean hasDoubleBond(){
+		if(graph!=null)return graph.hasDoubleBond(index);
 		return hasBond((bt)->bt.isDoubleBond());
 	}
 	public boolean hasDoubleBondCarbon(){
+		if(graph!=null)return graph.hasDoubleBondCarbon(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return cn.isDoubleBondedCarbon() && cn.hasBond(b->b.hasAtom(this) && b.isDoubleBond());
 		});
 	}
 	
 	public boolean hasCarbonTripleBond(){
+		if(graph!=null)return graph.hasCarbonTripleBond(index);
 		return isCarbon() && this.hasBond(bt->bt.isTripleBond());
 	}
 	
 	public boolean isDoubleBondedOxygen(){
+		if(graph!=null)return graph.isDoubleBondedOxygen(index);
 		return isOxygen() && hasDoubleBond();
 	}
 
 	public boolean isDoubleBondedCarbon(){
+		if(graph!=null)return graph.isDoubleBondedCarbon(index);
 		return isCarbon() && hasDoubleBond();
 	}
 	
 	public boolean isDoubleBondedNitrogen(){
+		if(graph!=null)return graph.isDoubleBondedNitrogen(index);
 		return isNitrogen() && hasDoubleBond();
 	}
 	
 	public boolean isDoubleBondedNSorP(){
+		if(graph!=null)return graph.isDoubleBondedNSorP(index);
 		return (isSulfur() || isNitrogen() || isPhosphorus()) && (hasDoubleBond());
 	}
 	
 	public boolean isDoubleBondedOrAromaticNSorP(){
+		if(graph!=null)return graph.isDoubleBondedOrAromaticNSorP(index);
 		
 		if(isNitrogen() && hasAromaticBond()) {
 			return getHCount()==0;
@@ -343,48 +422,57 @@ public class AtomTest extends ChemWrapper<Atom>{
 	}
 	
 	public boolean isCarbonyl(){
+		if(graph!=null)return graph.isCarbonyl(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return cn.isDoubleBondedOxygen();
 		});
 	}
 	
 	public boolean isCarbonylAmide(){
+		if(graph!=null)return graph.isCarbonylAmide(index);
 		return isCarbonyl() && this.hasBond(b->b.isSingleBond() && b.hasAtomKind(att->att.isNitrogen()));
 	}
 	
 	public boolean isCarbonylEster(){
+		if(graph!=null)return graph.isCarbonylEster(index);
 		return isCarbonyl() && this.hasBond(b->b.isSingleBond() && b.hasAtomKind(att->att.isOxygen() && !att.isOH()));
 	}
 
 	public boolean isImine(){
+		if(graph!=null)return graph.isImine(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return cn.isDoubleBondedNitrogen() && cn.hasBond(b->b.hasAtom(this) && b.isDoubleBond());
 		});
 	}
 	public boolean isSulfone(){
+		if(graph!=null)return graph.isSulfone(index);
 		return isSulfur() && countNeighbor((cn)->{
 			return cn.isDoubleBondedOxygen();
 		})==2;
 	}
 	
 	public boolean isNitrate(){
+		if(graph!=null)return graph.isNitrate(index);
 		return isNitrogen() && this.getHCount()==0 && countNeighbor((cn)->{
 			return cn.isDoubleBondedOxygen();
 		})==1 && this.hasOH();
 	}
 	
 	public boolean isQuatAmine(){
+		if(graph!=null)return graph.isQuatAmine(index);
 		return isNitrogen() && this.getHCount()==0 && this.getBonds().count()==4;
 	}
 	
 	
 	public boolean isPhosphone(){
+		if(graph!=null)return graph.isPhosphone(index);
 		return isPhosphorus() && countNeighbor((cn)->{
 			return cn.isDoubleBondedOxygen();
 		}) >=1;
 	}
 	
 	public boolean isEnolLike(){
+		if(graph!=null)return graph.isEnolLike(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return cn.isOH();
 		}) && (this.hasDoubleBond() || this.isAromaticCarbon());
@@ -398,47 +486,59 @@ public class AtomTest extends ChemWrapper<Atom>{
 	}
 	
 	public boolean isMethyl(){
+		if(graph!=null)return graph.isMethyl(index);
 		return isCarbon() && this.getHCount()==3;
 	}
 	
 	public boolean isTerminalHeteroAtom(){
+		if(graph!=null)return graph.isTerminalHeteroAtom(index);
 		return !isCarbon() && (this.countNeighbor(aa->!aa.isHydrogen())<=1);
 	}
 	
 	public boolean isCarboxyl(){
+		if(graph!=null)return graph.isCarboxyl(index);
 		return isCarbonyl() && hasOH();
 	}
 	public boolean isCarboxylCharged(){
+		if(graph!=null)return graph.isCarboxylCharged(index);
 		return isCarbonyl() && hasNeighbor((cn)->cn.isOxygen() && cn.getHCount()==0 && !cn.hasDoubleBond() && !cn.isNeutral() );
 	}
 	
 	public boolean isOH(){
+		if(graph!=null)return graph.isOH(index);
 		return isOxygen() && getHCount()>0;
 	}
 	public boolean hasOH(){
+		if(graph!=null)return graph.hasOH(index);
 		return hasNeighbor((cn)->cn.isOH());
 	}
 	
 	public int countOH(){
+		if(graph!=null)return graph.countOH(index);
 		return countNeighbor((cn)->cn.isOH());
 	}
 	
 	public int getHCount(){
+		if(graph!=null)return graph.getHCount(index);
 		return ca.getImplicitHCount() + (int)getNeighbors(cn->cn.isAtomSymbol("H")).count();
 	}
 	
 	public boolean isSp3Carbon(){
+		if(graph!=null)return graph.isSp3Carbon(index);
 		
 		return isCarbon() && (ca.getImplicitHCount() + ca.getBondCount()==4);
 	}
 	public boolean hasAllCarbonAndHNeighbors(){
+		if(graph!=null)return graph.hasAllCarbonAndHNeighbors(index);
 		return !hasNeighbor(nn->!nn.isCarbon() && !nn.get().getSymbol().equals("H"));
 	}
 	public boolean isAromaticCarbon(){
+		if(graph!=null)return graph.isAromaticCarbon(index);
 		return isCarbon() && (ca.hasAromaticBond()) && isInRing();
 	}
 	
 	public boolean isAromatic(){
+		if(graph!=null)return graph.isAromatic(index);
 		return ca.hasAromaticBond() && isInRing();
 	}
 	
@@ -453,12 +553,20 @@ public class AtomTest extends ChemWrapper<Atom>{
 	
 	
 	public boolean equals(Object o){
+		if(this==o){
+			return true;
+		}
 		if(!(o instanceof AtomTest)){
 			return false;
 		}
-		return this.wEquals((AtomTest)o);
+		AtomTest other = (AtomTest)o;
+		if(graph!=null && other.graph==graph){
+			return index==other.index;
+		}
+		return this.wEquals(other);
 	}
 	public int hashCode(){
+		if(graph!=null)return hash;
 		return this.wHashCode();
 	}
 
@@ -467,47 +575,56 @@ public class AtomTest extends ChemWrapper<Atom>{
 	}
 
 	public boolean isDoubleBondToSNorP() {
+		if(graph!=null)return graph.isDoubleBondToSNorP(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return cn.isDoubleBondedNSorP() && cn.hasBond(b->b.hasAtom(this) && b.isDoubleBond());
 		});
 	}
 	
 	public boolean isDoubleOrAromaticBondToSNorP() {
+		if(graph!=null)return graph.isDoubleOrAromaticBondToSNorP(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return cn.isDoubleBondedOrAromaticNSorP() && cn.hasBond(b->b.hasAtom(this) && (b.isDoubleBond()|| b.isAromatic()));
 		});
 	}
 	
 	public boolean isDoubleBondToSorN() {
+		if(graph!=null)return graph.isDoubleBondToSorN(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return !cn.isPhosphorus() && cn.isDoubleBondedNSorP() && cn.hasBond(b->b.hasAtom(this) && b.isDoubleBond());
 		});
 	}
 	
 	public boolean isCyanide() {
+		if(graph!=null)return graph.isCyanide(index);
 		return isCarbon() && hasNeighbor((cn)->{
 			return cn.isNitrogen() && cn.hasBond(b->b.hasAtom(this) && b.isTripleBond());
 		});
 	}
 
 	public boolean isNeutral() {
+		if(graph!=null)return graph.isNeutral(index);
 		return get().getCharge()==0;
 	}
 
 	public boolean isSulfoxyl(){
+		if(graph!=null)return graph.isSulfoxyl(index);
 		return isSulfone() && hasOH();
 	}
 	
 	public boolean isSulfoxylCharged(){
+		if(graph!=null)return graph.isSulfoxylCharged(index);
 		return isSulfone() && hasNeighbor((cn)->cn.isOxygen() && cn.getHCount()==0 && !cn.hasDoubleBond()  && !cn.isNeutral());
 	}
 	
 
 	public boolean  isPhosphate() {
+		if(graph!=null)return graph.isPhosphate(index);
 		return isPhosphone() && countOH()>=2;
 	}
 
 	public boolean isMetal() {
+		if(graph!=null)return graph.isMetal(index);
 		return ca.isMetal();
 	}
 	
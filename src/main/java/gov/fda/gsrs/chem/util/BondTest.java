@@ -1,6 +1,7 @@
 package gov.fda.gsrs.chem.util;
 
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import gov.nih.ncats.common.stream.StreamUtil;
@@ -8,8 +9,18 @@ import gov.nih.ncats.molwitch.Bond;
 import gov.nih.ncats.molwitch.Chemical;
 
 
+/**
+ * Predicates on a bond. One made by {@link #of(Bond)} asks the toolkit each
+ * time. One from {@link MolGraph#bondTest(int)} is the one wrapper for that
+ * bond of the snapshot and answers from its arrays, and hands out the
+ * snapshot's wrappers for the atoms and bonds it gives.
+ */
 public class BondTest extends ChemWrapper<Bond>{
 	private final Bond cb;
+	private final MolGraph graph;
+	private final int index;
+	//of the wrapped bond, kept for ones from a snapshot
+	private final int hash;
 	
 	public static Stream<BondTest> stream(Chemical c){
 		return c.bonds()
@@ -18,9 +29,20 @@ public class BondTest extends ChemWrapper<Bond>{
 	
 	public BondTest(Bond cb){
 		this.cb=cb;
+		this.graph=null;
+		this.index=-1;
+		this.hash=0;
+	}
+
+	BondTest(MolGraph graph, int index){
+		this.cb=graph.getBond(index);
+		this.graph=graph;
+		this.index=index;
+		this.hash=this.wHashCode();
 	}
 	
 	public boolean isInRing() {
+		if(graph!=null)return graph.isRingBond(index);
 		return cb.isInRing();
 	}
 	
@@ -29,11 +51,14 @@ public class BondTest extends ChemWrapper<Bond>{
 	}
 
 	public boolean hasAtom(AtomTest at){
+		if(graph!=null && at.getGraph()==graph){
+			return graph.bondAtom(index, 0)==at.getIndex() || graph.bondAtom(index, 1)==at.getIndex();
+		}
 		return cb.getAtom1().equals(at.get()) || cb.getAtom2().equals(at.get());
 	}
 	
 	public boolean hasAtomKind(Predicate<AtomTest> pred){
-		return pred.test(AtomTest.of(cb.getAtom1())) || pred.test(AtomTest.of(cb.getAtom2()));
+		return atoms().anyMatch(pred);
 	}
 	
 	@Override
@@ -42,24 +67,54 @@ public class BondTest extends ChemWrapper<Bond>{
 	}
 	
 	public boolean isDoubleBond(){
+		if(graph!=null)return graph.getBondOrder(index)==2;
 		return cb.getBondType().getOrder()==2;
 	}
 	
 	public boolean isSingleBond(){
+		if(graph!=null)return graph.getBondOrder(index)==1;
 		return cb.getBondType().getOrder()==1;
 	}
 	public boolean isTripleBond(){
+		if(graph!=null)return graph.getBondOrder(index)==3;
 		return cb.getBondType().getOrder()==3;
 	}
 	
 	public boolean isAromatic() {
+		if(graph!=null)return graph.isAromaticBond(index);
 		return cb.isAromatic();
 	}
 	public Stream<AtomTest> atoms(){
+		if(graph!=null){
+			return Stream.of(graph.atomTest(graph.bondAtom(index, 0)), graph.atomTest(graph.bondAtom(index, 1)));
+		}
 		return Stream.of(this.get().getAtom1(), this.get().getAtom2()).map(a->AtomTest.of(a));
 	}
 	
+	/**
+	 * The atom at the other end of the bond from the given one.
+	 * @param at an atom of the bond
+	 * @return
+	 */
+	public AtomTest getOtherAtom(AtomTest at){
+		if(graph!=null && at.getGraph()==graph){
+			int a1=graph.bondAtom(index, 0);
+			return graph.atomTest((a1==at.getIndex())?graph.bondAtom(index, 1):a1);
+		}
+		return AtomTest.of(cb.getOtherAtom(at.get()));
+	}
+	
 	public Stream<BondTest> getNeighborBonds(){
+		if(graph!=null){
+			int a1=graph.bondAtom(index, 0);
+			int a2=graph.bondAtom(index, 1);
+			//a bond to both ends would be this one, so no bond comes up twice
+			return IntStream.concat(IntStream.range(graph.firstNeighbor(a1), graph.endNeighbor(a1)),
+									IntStream.range(graph.firstNeighbor(a2), graph.endNeighbor(a2)))
+					.map(graph::neighborBond)
+					.filter(b->b!=index)
+					.mapToObj(graph::bondTest);
+		}
 		return StreamUtil.with(this.get().getAtom1().getBonds().stream().map(b->BondTest.of(b)))
 				.and(this.get().getAtom2().getBonds().stream().map(b->BondTest.of(b)))
 				.stream()
@@ -81,12 +136,20 @@ public class BondTest extends ChemWrapper<Bond>{
 	
 
 	public boolean equals(Object o){
+		if(this==o){
+			return true;
+		}
 		if(!(o instanceof BondTest)){
 			return false;
 		}
-		return this.wEquals((BondTest)o);
+		BondTest other = (BondTest)o;
+		if(graph!=null && other.graph==graph){
+			return index==other.index;
+		}
+		return this.wEquals(other);
 	}
 	public int hashCode(){
+		if(graph!=null)return hash;
 		return this.wHashCode();
 	}
 }
\ No newline at end of file
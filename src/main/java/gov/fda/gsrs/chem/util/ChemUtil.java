@@ -76,14 +76,36 @@ public class ChemUtil {
 		return bonds;
 	}
 	
+	/**
+	 * Size of the smallest ring each bond is in, up to the maxRingSize
+	 * specified, see {@link RingPerception}.
+	 * @param c
+	 * @param maxRingSize
+	 * @return the size by bond position, for the bonds in a ring of at most maxRingSize
+	 */
+	public static Map<Integer,Integer> getSmallestRingSizeForEachBond(Chemical c, int maxRingSize){
+		RingIndex rings = new RingIndex(c, maxRingSize);
+		Map<Integer,Integer> minRingForBond= new HashMap<>();
+		for(int i=0;i<c.getBondCount();i++){
+			int size = rings.getBondRingSize(i);
+			if(size>0){
+				minRingForBond.put(i, size);
+			}
+		}
+		return minRingForBond;
+	}
+
 	/**
 	 * This is a ring-detection algorithm which colors edges based on their smallest detected ring, up to the maxRingSize
 	 * specified. This is accomplished with a breadth-first search from each bond
 	 * @param b
 	 * @param m
 	 * @return
+	 * @deprecated kept to check {@link #getSmallestRingSizeForEachBond(Chemical, int)} against, which
+	 *             gives the same sizes much faster
 	 */
-	public static Map<Integer,Integer> getSmallestRingSizeForEachBond(Chemical b, int maxRingSize){
+	@Deprecated
+	public static Map<Integer,Integer> getSmallestRingSizeForEachBondByBondSearch(Chemical b, int maxRingSize){
 
 		//The computed return object
 		Map<Integer,Integer> minRingForBond= new HashMap<>();
@@ -165,6 +187,7 @@ public class ChemUtil {
 			cii[1]=iter;
 			for(int i=0;i<b.getBondCount();i++){
 				cii[0]=i;
+				TimeLimiter.checkInterrupted();
 
 				Set<Integer> cbl= cursorBondsL.get(i);
 				Set<Integer> cbr= cursorBondsR.get(i);
@@ -249,6 +272,24 @@ public class ChemUtil {
 		return minRingForBond;
 	}
 	
+	/**
+	 * Number of atoms that aren't hydrogen. Used as a rough estimate of
+	 * how expensive a structure will be to featurize, since ring perception
+	 * and the path searches grow faster than linearly with this.
+	 * 
+	 * @param c
+	 * @return
+	 */
+	public static int heavyAtomCount(Chemical c){
+		int count=0;
+		for(int i=0;i<c.getAtomCount();i++){
+			if(c.getAtom(i).getAtomicNumber()!=1){
+				count++;
+			}
+		}
+		return count;
+	}
+	
 	public static Atom[] getAtoms(Bond b){
 		return new Atom[] {b.getAtom1(),b.getAtom2()};
 	}
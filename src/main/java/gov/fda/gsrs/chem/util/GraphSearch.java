@@ -0,0 +1,183 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.LinkedList;
+
+/**
+ * Breadth first search over a {@link MolGraph}, kept in int arrays that are
+ * reused from one search to the next, so a search makes no objects. Each
+ * atom that's reached keeps its depth and the atom it was reached from,
+ * and a path is only put together when asked for.
+ * <p>
+ * A search can be limited to a depth, told to go round some atoms, and
+ * stopped by the visitor at any atom. Not safe for use by more than one
+ * thread at a time.
+ * </p>
+ */
+public class GraphSearch {
+
+	/**
+	 * Called for each atom as it's reached, in order of depth, starting
+	 * with the start atom.
+	 */
+	public interface Visitor{
+		/**
+		 * @param search the search, to ask for the depth or path of the atom
+		 * @param atom position of the atom
+		 * @return false to stop the search
+		 */
+		boolean visit(GraphSearch search, int atom);
+	}
+
+	private final MolGraph graph;
+
+	//an atom was reached in the current search if reached[atom]==stamp,
+	//and is to be gone round if it's -stamp
+	private final int[] reached;
+	private final int[] depth;
+	private final int[] parent;
+	private final int[] queue;
+	private int stamp=1;
+
+	public GraphSearch(MolGraph graph){
+		this.graph=graph;
+		int n=graph.getAtomCount();
+		this.reached=new int[n];
+		this.depth=new int[n];
+		this.parent=new int[n];
+		this.queue=new int[n];
+	}
+
+	public MolGraph getGraph(){
+		return graph;
+	}
+
+	/**
+	 * Forgets the last search and any atoms to go round.
+	 * @return this
+	 */
+	public GraphSearch reset(){
+		stamp++;
+		return this;
+	}
+
+	/**
+	 * Keeps the next search from reaching or going through the given atom.
+	 * @param atom
+	 * @return this
+	 */
+	public GraphSearch exclude(int atom){
+		reached[atom]=-stamp;
+		return this;
+	}
+
+	/**
+	 * Searches out from the start atom, up to maxDepth bonds away, and
+	 * until the visitor says to stop. Atoms given to {@link #exclude(int)}
+	 * since the last {@link #reset()} aren't reached.
+	 * @param start
+	 * @param maxDepth
+	 * @param visitor
+	 * @return the atom the visitor stopped at, or -1 if it didn't stop
+	 */
+	public int search(int start, int maxDepth, Visitor visitor){
+		int head=0;
+		int tail=0;
+		reached[start]=stamp;
+		depth[start]=0;
+		parent[start]=-1;
+		if(!visitor.visit(this, start)){
+			return start;
+		}
+		queue[tail++]=start;
+		while(head<tail){
+			TimeLimiter.checkInterrupted();
+			int a=queue[head++];
+			if(depth[a]>=maxDepth){
+				continue;
+			}
+			for(int k=graph.firstNeighbor(a);k<graph.endNeighbor(a);k++){
+				int n=graph.neighborAtom(k);
+				if(reached[n]==stamp || reached[n]==-stamp){
+					continue;
+				}
+				reached[n]=stamp;
+				depth[n]=depth[a]+1;
+				parent[n]=a;
+				if(!visitor.visit(this, n)){
+					return n;
+				}
+				queue[tail++]=n;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Number of bonds on the shortest path between two atoms.
+	 * @param from
+	 * @param to
+	 * @param maxDepth
+	 * @return the distance, or -1 if it's more than maxDepth
+	 */
+	public int distance(int from, int to, int maxDepth){
+		reset();
+		int found = search(from, maxDepth, (s,a)->a!=to);
+		return (found==to)?depth[to]:-1;
+	}
+
+	/**
+	 * Whether the atom was reached in the last search.
+	 * @param atom
+	 * @return
+	 */
+	public boolean isReached(int atom){
+		return reached[atom]==stamp;
+	}
+
+	/**
+	 * Bonds from the start atom to the given atom in the last search.
+	 * @param atom an atom that was reached
+	 * @return
+	 */
+	public int getDepth(int atom){
+		return depth[atom];
+	}
+
+	/**
+	 * The atom the given atom was reached from in the last search.
+	 * @param atom an atom that was reached
+	 * @return the atom, or -1 for the start atom
+	 */
+	public int getParent(int atom){
+		return parent[atom];
+	}
+
+	/**
+	 * Whether any atom on the path to the given atom, both ends included,
+	 * is a hydrogen.
+	 * @param atom an atom that was reached
+	 * @return
+	 */
+	public boolean pathHasHydrogen(int atom){
+		for(int a=atom;a>=0;a=parent[a]){
+			if(graph.isHydrogen(a)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The path from the start atom to the given atom in the last search,
+	 * with the given atom first and the start atom last.
+	 * @param atom an atom that was reached
+	 * @return
+	 */
+	public LinkedList<AtomTest> getPath(int atom){
+		LinkedList<AtomTest> path = new LinkedList<>();
+		for(int a=atom;a>=0;a=parent[a]){
+			path.add(graph.atomTest(a));
+		}
+		return path;
+	}
+}
@@ -0,0 +1,108 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Bounded, thread-safe cache of InChIKeys, keyed by SMILES. Making a SMILES
+ * is much cheaper than making an InChI, so this pays off for structures that
+ * come up over and over, like the counter-ions of salt forms. The least
+ * recently used entries are dropped once the cache is full.
+ * <p>
+ * The SMILES keeps charges, isotopes and stereo, so two structures with
+ * the same SMILES always have the same InChIKey. It isn't canonical, so
+ * the same structure written a different way is just a miss. Stereo only
+ * makes it into the InChI when there are coordinates, so structures with and
+ * without coordinates are cached separately.
+ * </p>
+ */
+public class InChIKeyCache {
+
+	private final int maxSize;
+	private final Map<String,String> keys;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public InChIKeyCache(int maxSize){
+		if(maxSize<1){
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		this.maxSize=maxSize;
+		this.keys=new LinkedHashMap<String,String>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,String> eldest){
+				return size()>InChIKeyCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * InChIKey of the given structure, from the cache if it's there.
+	 * @param c
+	 * @return
+	 * @throws Exception if the SMILES or InChI can't be made
+	 */
+	public String getKey(Chemical c) throws Exception{
+		return getKey(c.toSmiles(), c);
+	}
+
+	/**
+	 * InChIKey of the given structure, cached under SMILES that's already
+	 * known for it, like the input text it was parsed from.
+	 * @param smiles
+	 * @param c
+	 * @return
+	 * @throws Exception if the InChI can't be made
+	 */
+	public String getKey(String smiles, Chemical c) throws Exception{
+		if(c.has2DCoordinates()){
+			smiles = "2D:" + smiles;
+		}
+		synchronized(keys){
+			String key = keys.get(smiles);
+			if(key!=null){
+				hits.incrementAndGet();
+				return key;
+			}
+		}
+		misses.incrementAndGet();
+		String key = c.toInchi().getKey();
+		synchronized(keys){
+			keys.put(smiles, key);
+		}
+		return key;
+	}
+
+	public int getMaxSize(){
+		return maxSize;
+	}
+
+	public int size(){
+		synchronized(keys){
+			return keys.size();
+		}
+	}
+
+	/**
+	 * Drops every entry and zeroes the hit and miss counts.
+	 */
+	public void clear(){
+		synchronized(keys){
+			keys.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+}
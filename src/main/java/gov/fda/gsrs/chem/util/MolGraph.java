@@ -0,0 +1,785 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Bond;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Read-only snapshot of a structure as primitive arrays, so feature
+ * predicates can be answered without going back through the toolkit or
+ * making any objects. The neighbors of atom i are at positions
+ * {@link #firstNeighbor(int)} up to {@link #endNeighbor(int)} of the
+ * adjacency arrays (compressed sparse rows), with the bond to each.
+ * <p>
+ * The predicates are the same as the ones of the same name in
+ * {@link AtomTest}, by atom position. They are all worked out for every
+ * atom when the snapshot is made, in one pass per level of neighbors they
+ * look at, and kept as bits, so asking is just reading the bit. Nothing
+ * follows later changes to the structure, so the snapshot has to be made
+ * after anything that changes elements, charges, hydrogens, bonds or
+ * aromaticity.
+ * </p>
+ * <p>
+ * There is one {@link AtomTest} and one {@link BondTest} per atom and bond
+ * of a snapshot, made the first time it's asked for and handed out after
+ * that, so sets and maps of them hash and compare cheaply, see
+ * {@link #atomTest(int)}.
+ * </p>
+ */
+public class MolGraph {
+
+	//element codes, the atomic number of the elements predicates ask about, 0 for any other
+	public static final byte OTHER = 0;
+	public static final byte H = 1;
+	public static final byte C = 6;
+	public static final byte N = 7;
+	public static final byte O = 8;
+	public static final byte F = 9;
+	public static final byte P = 15;
+	public static final byte S = 16;
+	public static final byte CL = 17;
+	public static final byte BR = 35;
+	public static final byte I = 53;
+
+	private static final Map<String,Byte> ELEMENT_CODES = new HashMap<>();
+	static{
+		ELEMENT_CODES.put("H", H);
+		ELEMENT_CODES.put("C", C);
+		ELEMENT_CODES.put("N", N);
+		ELEMENT_CODES.put("O", O);
+		ELEMENT_CODES.put("F", F);
+		ELEMENT_CODES.put("P", P);
+		ELEMENT_CODES.put("S", S);
+		ELEMENT_CODES.put("Cl", CL);
+		ELEMENT_CODES.put("Br", BR);
+		ELEMENT_CODES.put("I", I);
+	}
+
+	private final Atom[] atoms;
+	private final Bond[] bonds;
+	private final Map<Atom,Integer> atomIndex;
+
+	//neighbors of atom i are adjAtom[adjStart[i]] .. adjAtom[adjStart[i+1]-1]
+	private final int[] adjStart;
+	private final int[] adjAtom;
+	private final int[] adjBond;
+
+	private final String[] symbols;
+	private final byte[] elements;
+	private final byte[] charges;
+	private final byte[] implicitH;
+	private final boolean[] aromaticAtom;
+	private final boolean[] ringAtom;
+	private final boolean[] queryAtom;
+	private final boolean[] metal;
+
+	private final byte[] bondOrders;
+	private final boolean[] aromaticBond;
+	//atom positions of the two ends of bond b are bondAtoms[b*2] and bondAtoms[b*2+1]
+	private final int[] bondAtoms;
+	//whether each bond is in a ring, looked up the first time it's asked: 0 not yet, 1 no, 2 yes
+	private final byte[] ringBond;
+
+	//one wrapper per atom and bond, made when first asked for
+	private final AtomTest[] atomTests;
+	private final BondTest[] bondTests;
+
+	//worked out once for every atom, see typeAtoms()
+	private final long[] props;
+	private final int[] hCount;
+	private final int[] carbonCount;
+	private final int[] ohCount;
+
+	private MolGraph(Chemical c){
+		int na=c.getAtomCount();
+		int nb=c.getBondCount();
+		atoms = new Atom[na];
+		bonds = new Bond[nb];
+		atomIndex = new HashMap<>(na*2);
+		symbols = new String[na];
+		elements = new byte[na];
+		charges = new byte[na];
+		implicitH = new byte[na];
+		aromaticAtom = new boolean[na];
+		ringAtom = new boolean[na];
+		queryAtom = new boolean[na];
+		metal = new boolean[na];
+		for(int i=0;i<na;i++){
+			Atom a = c.getAtom(i);
+			atoms[i]=a;
+			atomIndex.put(a, i);
+			symbols[i]=a.getSymbol();
+			elements[i]=ELEMENT_CODES.getOrDefault(symbols[i], OTHER);
+			charges[i]=(byte)a.getCharge();
+			implicitH[i]=(byte)a.getImplicitHCount();
+			aromaticAtom[i]=a.hasAromaticBond();
+			ringAtom[i]=a.isInRing();
+			queryAtom[i]=a.isQueryAtom();
+			metal[i]=a.isMetal();
+		}
+
+		bondOrders = new byte[nb];
+		aromaticBond = new boolean[nb];
+		int[] ends = new int[nb*2];
+		bondAtoms = ends;
+		ringBond = new byte[nb];
+		adjStart = new int[na+1];
+		for(int i=0;i<nb;i++){
+			Bond b = c.getBond(i);
+			bonds[i]=b;
+			bondOrders[i]=(byte)b.getBondType().getOrder();
+			aromaticBond[i]=b.isAromatic();
+			ends[i*2]=atomIndex.get(b.getAtom1());
+			ends[i*2+1]=atomIndex.get(b.getAtom2());
+			adjStart[ends[i*2]+1]++;
+			adjStart[ends[i*2+1]+1]++;
+		}
+		for(int i=0;i<na;i++){
+			adjStart[i+1]+=adjStart[i];
+		}
+		adjAtom = new int[nb*2];
+		adjBond = new int[nb*2];
+		int[] fill = new int[na];
+		for(int i=0;i<nb;i++){
+			int a1=ends[i*2];
+			int a2=ends[i*2+1];
+			int k1=adjStart[a1]+fill[a1]++;
+			adjAtom[k1]=a2;
+			adjBond[k1]=i;
+			int k2=adjStart[a2]+fill[a2]++;
+			adjAtom[k2]=a1;
+			adjBond[k2]=i;
+		}
+
+		props = new long[na];
+		hCount = new int[na];
+		carbonCount = new int[na];
+		ohCount = new int[na];
+		typeAtoms();
+
+		atomTests = new AtomTest[na];
+		bondTests = new BondTest[nb];
+	}
+
+	/**
+	 * Snapshot of the structure as it is now.
+	 * @param c
+	 * @return
+	 */
+	public static MolGraph of(Chemical c){
+		return new MolGraph(c);
+	}
+
+	public int getAtomCount(){
+		return atoms.length;
+	}
+
+	public int getBondCount(){
+		return bonds.length;
+	}
+
+	public Atom getAtom(int i){
+		return atoms[i];
+	}
+
+	public Bond getBond(int b){
+		return bonds[b];
+	}
+
+	/**
+	 * Position of the atom in the structure, or -1 if it isn't in it.
+	 * @param a
+	 * @return
+	 */
+	public int indexOf(Atom a){
+		Integer i = atomIndex.get(a);
+		return (i==null)?-1:i;
+	}
+
+	/**
+	 * Position of the bond in the structure, or -1 if it isn't in it.
+	 * @param b
+	 * @return
+	 */
+	public int indexOf(Bond b){
+		int a1 = indexOf(b.getAtom1());
+		if(a1<0){
+			return -1;
+		}
+		for(int k=adjStart[a1];k<adjStart[a1+1];k++){
+			if(bonds[adjBond[k]].equals(b)){
+				return adjBond[k];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The {@link AtomTest} for the atom at the given position, whose
+	 * predicates are answered from this snapshot. The same one is returned
+	 * every time, and it equals other ones for the same atom, from this
+	 * snapshot or not.
+	 * <p>
+	 * Two threads asking at once may each make one, which is harmless as
+	 * they are still equal, but a snapshot is meant for one thread.
+	 * </p>
+	 * @param i
+	 * @return
+	 */
+	public AtomTest atomTest(int i){
+		AtomTest at = atomTests[i];
+		if(at==null){
+			at = new AtomTest(this, i);
+			atomTests[i]=at;
+		}
+		return at;
+	}
+
+	/**
+	 * The {@link BondTest} for the bond at the given position, answered
+	 * from this snapshot, made once like {@link #atomTest(int)}.
+	 * @param b
+	 * @return
+	 */
+	public BondTest bondTest(int b){
+		BondTest bt = bondTests[b];
+		if(bt==null){
+			bt = new BondTest(this, b);
+			bondTests[b]=bt;
+		}
+		return bt;
+	}
+
+	/**
+	 * Every atom as an {@link AtomTest} answered from this snapshot.
+	 * @return
+	 */
+	public Stream<AtomTest> atomTests(){
+		return IntStream.range(0, atoms.length).mapToObj(this::atomTest);
+	}
+
+	/**
+	 * The given atoms as {@link AtomTest}s answered from this snapshot.
+	 * Atoms that aren't in the structure are kept as they are.
+	 * @param ats
+	 * @return
+	 */
+	public List<AtomTest> atomTests(List<AtomTest> ats){
+		List<AtomTest> out = new ArrayList<>(ats.size());
+		for(AtomTest at: ats){
+			if(at.getGraph()==this){
+				out.add(at);
+				continue;
+			}
+			int i = indexOf(at.get());
+			out.add((i<0)?at:atomTest(i));
+		}
+		return out;
+	}
+
+	/**
+	 * First adjacency position of the atom at the given position.
+	 * @param i
+	 * @return
+	 */
+	public int firstNeighbor(int i){
+		return adjStart[i];
+	}
+
+	/**
+	 * Adjacency position after the last one of the atom at the given position.
+	 * @param i
+	 * @return
+	 */
+	public int endNeighbor(int i){
+		return adjStart[i+1];
+	}
+
+	/**
+	 * Atom position of the neighbor at the given adjacency position.
+	 * @param k
+	 * @return
+	 */
+	public int neighborAtom(int k){
+		return adjAtom[k];
+	}
+
+	/**
+	 * Bond position of the bond to the neighbor at the given adjacency position.
+	 * @param k
+	 * @return
+	 */
+	public int neighborBond(int k){
+		return adjBond[k];
+	}
+
+	public int getDegree(int i){
+		return adjStart[i+1]-adjStart[i];
+	}
+
+	public String getSymbol(int i){
+		return symbols[i];
+	}
+
+	public byte getElement(int i){
+		return elements[i];
+	}
+
+	public int getCharge(int i){
+		return charges[i];
+	}
+
+	public int getImplicitHCount(int i){
+		return implicitH[i];
+	}
+
+	public int getBondOrder(int b){
+		return bondOrders[b];
+	}
+
+	public boolean isAromaticBond(int b){
+		return aromaticBond[b];
+	}
+
+	/**
+	 * Atom position of one end of a bond.
+	 * @param b
+	 * @param end 0 or 1, for the first or second atom of the bond
+	 * @return
+	 */
+	public int bondAtom(int b, int end){
+		return bondAtoms[b*2+end];
+	}
+
+	/**
+	 * Whether the bond is in a ring. Asked of the toolkit the first time,
+	 * and kept.
+	 * @param b
+	 * @return
+	 */
+	public boolean isRingBond(int b){
+		if(ringBond[b]==0){
+			ringBond[b]=(byte)(bonds[b].isInRing()?2:1);
+		}
+		return ringBond[b]==2;
+	}
+
+	public boolean isAtomSymbol(int i, String s){
+		return symbols[i].equals(s);
+	}
+
+	public boolean hasAromaticBond(int i){
+		return aromaticAtom[i];
+	}
+
+	public boolean isInRing(int i){
+		return ringAtom[i];
+	}
+
+	public boolean isQueryAtom(int i){
+		return queryAtom[i];
+	}
+
+	public boolean isMetal(int i){
+		return metal[i];
+	}
+
+	public boolean isNeutral(int i){
+		return charges[i]==0;
+	}
+
+	public boolean isCarbon(int i){
+		return elements[i]==C;
+	}
+
+	public boolean isHydrogen(int i){
+		return elements[i]==H;
+	}
+
+	public boolean isNitrogen(int i){
+		return elements[i]==N;
+	}
+
+	public boolean isOxygen(int i){
+		return elements[i]==O;
+	}
+
+	public boolean isPhosphorus(int i){
+		return elements[i]==P;
+	}
+
+	public boolean isSulfur(int i){
+		return elements[i]==S;
+	}
+
+	public boolean isHalogen(int i){
+		byte e=elements[i];
+		return e==CL || e==F || e==BR || e==I;
+	}
+
+	//atom properties, one bit each, see the predicate of the same name
+	private static final long DOUBLE_BOND = 1L<<0;
+	private static final long TRIPLE_BOND = 1L<<1;
+	private static final long OH = 1L<<2;
+	private static final long METHYL = 1L<<3;
+	private static final long SP3_CARBON = 1L<<4;
+	private static final long AROMATIC = 1L<<5;
+	private static final long AROMATIC_CARBON = 1L<<6;
+	private static final long DOUBLE_BONDED_OXYGEN = 1L<<7;
+	private static final long DOUBLE_BONDED_CARBON = 1L<<8;
+	private static final long DOUBLE_BONDED_NITROGEN = 1L<<9;
+	private static final long DOUBLE_BONDED_NS_OR_P = 1L<<10;
+	private static final long DOUBLE_BONDED_OR_AROMATIC_NS_OR_P = 1L<<11;
+	private static final long TERMINAL_HETERO_ATOM = 1L<<12;
+	private static final long ALL_CARBON_AND_H_NEIGHBORS = 1L<<13;
+	private static final long QUAT_AMINE = 1L<<14;
+	private static final long CARBONYL = 1L<<15;
+	private static final long CARBONYL_AMIDE = 1L<<16;
+	private static final long CARBONYL_ESTER = 1L<<17;
+	private static final long IMINE = 1L<<18;
+	private static final long SULFONE = 1L<<19;
+	private static final long NITRATE = 1L<<20;
+	private static final long PHOSPHONE = 1L<<21;
+	private static final long PHOSPHATE = 1L<<22;
+	private static final long ENOL_LIKE = 1L<<23;
+	private static final long CARBOXYL = 1L<<24;
+	private static final long CARBOXYL_CHARGED = 1L<<25;
+	private static final long SULFOXYL = 1L<<26;
+	private static final long SULFOXYL_CHARGED = 1L<<27;
+	private static final long DOUBLE_BOND_CARBON = 1L<<28;
+	private static final long DOUBLE_BOND_TO_S_N_OR_P = 1L<<29;
+	private static final long DOUBLE_OR_AROMATIC_BOND_TO_S_N_OR_P = 1L<<30;
+	private static final long DOUBLE_BOND_TO_S_OR_N = 1L<<31;
+	private static final long CYANIDE = 1L<<32;
+	private static final long NITROSAMINE_ATOM = 1L<<33;
+	private static final long PEPTIDE_AMINE = 1L<<34;
+
+	/**
+	 * Works out every atom property in three passes over the atoms: first
+	 * what only needs the atom and its bonds, then what needs the first
+	 * pass on the neighbors, then what needs the second.
+	 */
+	private void typeAtoms(){
+		int na=atoms.length;
+		for(int i=0;i<na;i++){
+			int h=implicitH[i];
+			int carbons=0;
+			int heavy=0;
+			boolean otherNeighbor=false;
+			long p=0;
+			for(int k=adjStart[i];k<adjStart[i+1];k++){
+				byte e=elements[adjAtom[k]];
+				int order=bondOrders[adjBond[k]];
+				if(e==H){
+					h++;
+				}else{
+					heavy++;
+				}
+				if(e==C){
+					carbons++;
+				}else if(e!=H){
+					otherNeighbor=true;
+				}
+				if(order==2){
+					p|=DOUBLE_BOND;
+				}else if(order==3){
+					p|=TRIPLE_BOND;
+				}
+			}
+			hCount[i]=h;
+			carbonCount[i]=carbons;
+			byte e=elements[i];
+			boolean dbl=(p&DOUBLE_BOND)!=0;
+			if(e==C){
+				if(h==3)p|=METHYL;
+				if(implicitH[i] + getDegree(i)==4)p|=SP3_CARBON;
+				if(dbl)p|=DOUBLE_BONDED_CARBON;
+			}else{
+				if(heavy<=1)p|=TERMINAL_HETERO_ATOM;
+			}
+			if(e==O){
+				if(h>0)p|=OH;
+				if(dbl)p|=DOUBLE_BONDED_OXYGEN;
+			}
+			if(e==N){
+				if(dbl)p|=DOUBLE_BONDED_NITROGEN;
+				if(h==0 && getDegree(i)==4)p|=QUAT_AMINE;
+			}
+			if(aromaticAtom[i] && ringAtom[i]){
+				p|=AROMATIC;
+				if(e==C)p|=AROMATIC_CARBON;
+			}
+			if(e==S || e==N || e==P){
+				if(dbl)p|=DOUBLE_BONDED_NS_OR_P;
+				if(e==N && aromaticAtom[i]){
+					if(h==0)p|=DOUBLE_BONDED_OR_AROMATIC_NS_OR_P;
+				}else if(dbl || aromaticAtom[i]){
+					p|=DOUBLE_BONDED_OR_AROMATIC_NS_OR_P;
+				}
+			}
+			if(!otherNeighbor)p|=ALL_CARBON_AND_H_NEIGHBORS;
+			props[i]=p;
+		}
+
+		for(int i=0;i<na;i++){
+			byte e=elements[i];
+			long p=props[i];
+			int ohs=0;
+			int dbo=0;
+			boolean singleN=false;
+			boolean singleEsterO=false;
+			boolean chargedO=false;
+			boolean doubleO=false;
+			boolean nitrogen=false;
+			for(int k=adjStart[i];k<adjStart[i+1];k++){
+				int n=adjAtom[k];
+				int b=adjBond[k];
+				long np=props[n];
+				byte ne=elements[n];
+				int order=bondOrders[b];
+				if((np&OH)!=0)ohs++;
+				if((np&DOUBLE_BONDED_OXYGEN)!=0)dbo++;
+				if(ne==N)nitrogen=true;
+				if(ne==O){
+					if((np&DOUBLE_BOND)!=0){
+						doubleO=true;
+					}else if(hCount[n]==0 && charges[n]!=0){
+						chargedO=true;
+					}
+				}
+				if(order==1){
+					if(ne==N)singleN=true;
+					if(ne==O && (np&OH)==0)singleEsterO=true;
+				}
+				if(e==C){
+					if(order==2){
+						if((np&DOUBLE_BONDED_CARBON)!=0)p|=DOUBLE_BOND_CARBON;
+						if((np&DOUBLE_BONDED_NITROGEN)!=0)p|=IMINE;
+						if((np&DOUBLE_BONDED_NS_OR_P)!=0){
+							p|=DOUBLE_BOND_TO_S_N_OR_P;
+							if(ne!=P)p|=DOUBLE_BOND_TO_S_OR_N;
+						}
+					}
+					if((order==2 || aromaticBond[b]) && (np&DOUBLE_BONDED_OR_AROMATIC_NS_OR_P)!=0){
+						p|=DOUBLE_OR_AROMATIC_BOND_TO_S_N_OR_P;
+					}
+					if(order==3 && ne==N)p|=CYANIDE;
+				}
+			}
+			ohCount[i]=ohs;
+			if(e==C){
+				if(dbo>0){
+					p|=CARBONYL;
+					if(singleN)p|=CARBONYL_AMIDE;
+					if(singleEsterO)p|=CARBONYL_ESTER;
+					if(ohs>0)p|=CARBOXYL;
+					if(chargedO)p|=CARBOXYL_CHARGED;
+				}
+				if(ohs>0 && (p&(DOUBLE_BOND|AROMATIC_CARBON))!=0)p|=ENOL_LIKE;
+			}else if(e==S){
+				if(dbo==2){
+					p|=SULFONE;
+					if(ohs>0)p|=SULFOXYL;
+					if(chargedO)p|=SULFOXYL_CHARGED;
+				}
+			}else if(e==P){
+				if(dbo>=1){
+					p|=PHOSPHONE;
+					if(ohs>=2)p|=PHOSPHATE;
+				}
+			}else if(e==N){
+				if(hCount[i]==0 && dbo==1 && ohs>0)p|=NITRATE;
+				if(charges[i]==0 && getDegree(i)==2 && doubleO && nitrogen)p|=NITROSAMINE_ATOM;
+			}
+			props[i]=p;
+		}
+
+		for(int i=0;i<na;i++){
+			if(elements[i]!=N){
+				continue;
+			}
+			boolean carbonyl=false;
+			boolean carbon=false;
+			for(int k=adjStart[i];k<adjStart[i+1];k++){
+				int n=adjAtom[k];
+				if((props[n]&CARBONYL)!=0){
+					carbonyl|=carbonCount[n]>0;
+				}else{
+					carbon|=elements[n]==C;
+				}
+			}
+			if(carbonyl && carbon)props[i]|=PEPTIDE_AMINE;
+		}
+	}
+
+	private boolean is(int i, long prop){
+		return (props[i]&prop)!=0;
+	}
+
+	public int getHCount(int i){
+		return hCount[i];
+	}
+
+	public boolean hasDoubleBond(int i){
+		return is(i, DOUBLE_BOND);
+	}
+
+	public boolean hasCarbon(int i){
+		return carbonCount[i]>0;
+	}
+
+	public int countCarbon(int i){
+		return carbonCount[i];
+	}
+
+	public boolean isSp3Carbon(int i){
+		return is(i, SP3_CARBON);
+	}
+
+	public boolean isMethyl(int i){
+		return is(i, METHYL);
+	}
+
+	public boolean isAromaticCarbon(int i){
+		return is(i, AROMATIC_CARBON);
+	}
+
+	public boolean isAromatic(int i){
+		return is(i, AROMATIC);
+	}
+
+	public boolean isOH(int i){
+		return is(i, OH);
+	}
+
+	public boolean hasOH(int i){
+		return ohCount[i]>0;
+	}
+
+	public int countOH(int i){
+		return ohCount[i];
+	}
+
+	public boolean isDoubleBondedOxygen(int i){
+		return is(i, DOUBLE_BONDED_OXYGEN);
+	}
+
+	public boolean isDoubleBondedCarbon(int i){
+		return is(i, DOUBLE_BONDED_CARBON);
+	}
+
+	public boolean isDoubleBondedNitrogen(int i){
+		return is(i, DOUBLE_BONDED_NITROGEN);
+	}
+
+	public boolean isDoubleBondedNSorP(int i){
+		return is(i, DOUBLE_BONDED_NS_OR_P);
+	}
+
+	public boolean isDoubleBondedOrAromaticNSorP(int i){
+		return is(i, DOUBLE_BONDED_OR_AROMATIC_NS_OR_P);
+	}
+
+	public boolean hasDoubleBondCarbon(int i){
+		return is(i, DOUBLE_BOND_CARBON);
+	}
+
+	public boolean hasCarbonTripleBond(int i){
+		return isCarbon(i) && is(i, TRIPLE_BOND);
+	}
+
+	public boolean isCarbonyl(int i){
+		return is(i, CARBONYL);
+	}
+
+	public boolean isCarbonylAmide(int i){
+		return is(i, CARBONYL_AMIDE);
+	}
+
+	public boolean isCarbonylEster(int i){
+		return is(i, CARBONYL_ESTER);
+	}
+
+	public boolean isImine(int i){
+		return is(i, IMINE);
+	}
+
+	public boolean isSulfone(int i){
+		return is(i, SULFONE);
+	}
+
+	public boolean isNitrate(int i){
+		return is(i, NITRATE);
+	}
+
+	public boolean isQuatAmine(int i){
+		return is(i, QUAT_AMINE);
+	}
+
+	public boolean isPhosphone(int i){
+		return is(i, PHOSPHONE);
+	}
+
+	public boolean isPhosphate(int i){
+		return is(i, PHOSPHATE);
+	}
+
+	public boolean isEnolLike(int i){
+		return is(i, ENOL_LIKE);
+	}
+
+	public boolean isTerminalHeteroAtom(int i){
+		return is(i, TERMINAL_HETERO_ATOM);
+	}
+
+	public boolean isCarboxyl(int i){
+		return is(i, CARBOXYL);
+	}
+
+	public boolean isCarboxylCharged(int i){
+		return is(i, CARBOXYL_CHARGED);
+	}
+
+	public boolean isSulfoxyl(int i){
+		return is(i, SULFOXYL);
+	}
+
+	public boolean isSulfoxylCharged(int i){
+		return is(i, SULFOXYL_CHARGED);
+	}
+
+	public boolean isPeptideAmine(int i){
+		return is(i, PEPTIDE_AMINE);
+	}
+
+	public boolean isNitrosamineAtom(int i){
+		return is(i, NITROSAMINE_ATOM);
+	}
+
+	public boolean hasAllCarbonAndHNeighbors(int i){
+		return is(i, ALL_CARBON_AND_H_NEIGHBORS);
+	}
+
+	public boolean isDoubleBondToSNorP(int i){
+		return is(i, DOUBLE_BOND_TO_S_N_OR_P);
+	}
+
+	public boolean isDoubleOrAromaticBondToSNorP(int i){
+		return is(i, DOUBLE_OR_AROMATIC_BOND_TO_S_N_OR_P);
+	}
+
+	public boolean isDoubleBondToSorN(int i){
+		return is(i, DOUBLE_BOND_TO_S_OR_N);
+	}
+
+	public boolean isCyanide(int i){
+		return is(i, CYANIDE);
+	}
+}
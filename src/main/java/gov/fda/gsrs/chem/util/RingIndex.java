@@ -0,0 +1,322 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Bond;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Ring information for one structure, worked out once and shared by every
+ * feature and every site of that structure. Nothing is computed until it's
+ * first asked for, so structures without ring questions pay nothing.
+ * <p>
+ * Only the connectivity is used, so the index stays valid when atoms are
+ * changed (like setting a different element or charge), but not when atoms
+ * or bonds are added or removed.
+ * </p>
+ */
+public class RingIndex {
+
+	public static final int DEFAULT_MAX_RING_SIZE = 10;
+
+	private final Chemical c;
+	private final int maxRingSize;
+
+	private Map<Atom,Integer> atomIndex;
+	private Map<Bond,Integer> bondIndex;
+	private Atom[] atoms;
+	private Bond[] bonds;
+	private int[][] neighbors;
+	private int[][] neighborBonds;
+
+	//0 means not in a ring up to maxRingSize
+	private int[] bondRingSize;
+	private int[] atomRingSize;
+	//-1 means not in a ring up to maxRingSize
+	private int[] ringSystem;
+
+	private final Map<Bond,List<Atom>> ringPaths = new HashMap<>();
+
+	public RingIndex(Chemical c){
+		this(c, DEFAULT_MAX_RING_SIZE);
+	}
+
+	public RingIndex(Chemical c, int maxRingSize){
+		this.c=c;
+		this.maxRingSize=maxRingSize;
+	}
+
+	public Chemical getChemical(){
+		return c;
+	}
+
+	private void indexGraph(){
+		if(atomIndex!=null){
+			return;
+		}
+		int na=c.getAtomCount();
+		int nb=c.getBondCount();
+		Map<Atom,Integer> ai = new HashMap<>(na*2);
+		Map<Bond,Integer> bi = new HashMap<>(nb*2);
+		Atom[] as = new Atom[na];
+		Bond[] bs = new Bond[nb];
+		for(int i=0;i<na;i++){
+			as[i]=c.getAtom(i);
+			ai.put(as[i], i);
+		}
+		int[] degree = new int[na];
+		int[][] ends = new int[nb][2];
+		for(int i=0;i<nb;i++){
+			Bond b=c.getBond(i);
+			bs[i]=b;
+			bi.put(b, i);
+			ends[i][0]=ai.get(b.getAtom1());
+			ends[i][1]=ai.get(b.getAtom2());
+			degree[ends[i][0]]++;
+			degree[ends[i][1]]++;
+		}
+		int[][] nbrs = new int[na][];
+		int[][] nbrBonds = new int[na][];
+		for(int i=0;i<na;i++){
+			nbrs[i]=new int[degree[i]];
+			nbrBonds[i]=new int[degree[i]];
+		}
+		int[] fill = new int[na];
+		for(int i=0;i<nb;i++){
+			int a1=ends[i][0];
+			int a2=ends[i][1];
+			nbrs[a1][fill[a1]]=a2;
+			nbrBonds[a1][fill[a1]++]=i;
+			nbrs[a2][fill[a2]]=a1;
+			nbrBonds[a2][fill[a2]++]=i;
+		}
+		this.neighbors=nbrs;
+		this.neighborBonds=nbrBonds;
+		this.atoms=as;
+		this.bonds=bs;
+		this.bondIndex=bi;
+		this.atomIndex=ai;
+	}
+
+	private void computeRings(){
+		if(bondRingSize!=null){
+			return;
+		}
+		indexGraph();
+		int[] bsize = RingPerception.smallestRingSizes(neighbors, neighborBonds, c.getBondCount(), maxRingSize);
+
+		int[] asize = new int[c.getAtomCount()];
+		for(int i=0;i<asize.length;i++){
+			for(int b: neighborBonds[i]){
+				if(bsize[b]>0 && (asize[i]==0 || bsize[b]<asize[i])){
+					asize[i]=bsize[b];
+				}
+			}
+		}
+
+		//ring systems are the atoms joined by ring bonds
+		int[] system = new int[asize.length];
+		Arrays.fill(system, -1);
+		int next=0;
+		int[] queue = new int[asize.length];
+		for(int i=0;i<asize.length;i++){
+			if(asize[i]==0 || system[i]>=0){
+				continue;
+			}
+			system[i]=next;
+			int head=0;
+			int tail=0;
+			queue[tail++]=i;
+			while(head<tail){
+				int a=queue[head++];
+				for(int j=0;j<neighbors[a].length;j++){
+					int n=neighbors[a][j];
+					if(bsize[neighborBonds[a][j]]>0 && system[n]<0){
+						system[n]=next;
+						queue[tail++]=n;
+					}
+				}
+			}
+			next++;
+		}
+		this.ringSystem=system;
+		this.atomRingSize=asize;
+		this.bondRingSize=bsize;
+	}
+
+	/**
+	 * Position of the atom in the structure, or -1 if it isn't in it.
+	 * @param a
+	 * @return
+	 */
+	public int indexOf(Atom a){
+		indexGraph();
+		Integer i = atomIndex.get(a);
+		return (i==null)?-1:i;
+	}
+
+	public Atom getAtom(int atomIndex){
+		indexGraph();
+		return atoms[atomIndex];
+	}
+
+	public Bond getBond(int bondIndex){
+		indexGraph();
+		return bonds[bondIndex];
+	}
+
+	/**
+	 * Positions of the neighbors of the atom at the given position. The
+	 * array is shared, so it must not be changed.
+	 * @param atomIndex
+	 * @return
+	 */
+	public int[] getNeighbors(int atomIndex){
+		indexGraph();
+		return neighbors[atomIndex];
+	}
+
+	/**
+	 * Positions of the bonds to the neighbors of the atom at the given
+	 * position, in the same order as {@link #getNeighbors(int)}. The
+	 * array is shared, so it must not be changed.
+	 * @param atomIndex
+	 * @return
+	 */
+	public int[] getNeighborBonds(int atomIndex){
+		indexGraph();
+		return neighborBonds[atomIndex];
+	}
+
+	/**
+	 * Size of the smallest ring the bond at the given position is in, or 0
+	 * if it isn't in a ring of at most the max ring size.
+	 * @param bondIndex
+	 * @return
+	 */
+	public int getBondRingSize(int bondIndex){
+		computeRings();
+		return bondRingSize[bondIndex];
+	}
+
+	/**
+	 * Size of the smallest ring the atom at the given position is in, or 0
+	 * if it isn't in a ring of at most the max ring size.
+	 * @param atomIndex
+	 * @return
+	 */
+	public int getAtomRingSize(int atomIndex){
+		computeRings();
+		return atomRingSize[atomIndex];
+	}
+
+	/**
+	 * Size of the smallest ring the bond is in, or null if it isn't in a ring
+	 * of at most the max ring size.
+	 * @param b
+	 * @return
+	 */
+	public Integer getSmallestRingSize(Bond b){
+		computeRings();
+		Integer i = bondIndex.get(b);
+		if(i==null || bondRingSize[i]==0){
+			return null;
+		}
+		return bondRingSize[i];
+	}
+
+	/**
+	 * Size of the smallest ring the atom is in, or null if it isn't in a ring
+	 * of at most the max ring size.
+	 * @param a
+	 * @return
+	 */
+	public Integer getSmallestRingSize(Atom a){
+		computeRings();
+		Integer i = atomIndex.get(a);
+		if(i==null || atomRingSize[i]==0){
+			return null;
+		}
+		return atomRingSize[i];
+	}
+
+	/**
+	 * Id of the ring system (fused or bridged rings) the atom is in, or -1
+	 * if it isn't in a ring of at most the max ring size.
+	 * @param a
+	 * @return
+	 */
+	public int getRingSystem(Atom a){
+		computeRings();
+		Integer i = atomIndex.get(a);
+		if(i==null){
+			return -1;
+		}
+		return ringSystem[i];
+	}
+
+	/**
+	 * The atoms of the smallest ring through the given bond, found as the
+	 * shortest path between its atoms that doesn't use the bond. The path
+	 * starts at the given atom and ends at the other atom of the bond. This
+	 * isn't limited by the max ring size.
+	 * @param b
+	 * @param start one of the atoms of b
+	 * @return the path, or null if the bond isn't in a ring
+	 */
+	public List<Atom> getRingPath(Bond b, Atom start){
+		indexGraph();
+		List<Atom> path = ringPaths.computeIfAbsent(b, k->shortestPathAvoiding(k));
+		if(path==null){
+			return null;
+		}
+		if(path.get(0).equals(start)){
+			return path;
+		}
+		List<Atom> rev = new ArrayList<>(path);
+		Collections.reverse(rev);
+		return Collections.unmodifiableList(rev);
+	}
+
+	private List<Atom> shortestPathAvoiding(Bond b){
+		int skip=bondIndex.get(b);
+		int from=atomIndex.get(b.getAtom1());
+		int to=atomIndex.get(b.getAtom2());
+		int[] parent = new int[c.getAtomCount()];
+		Arrays.fill(parent, -1);
+		parent[from]=from;
+		int[] queue = new int[c.getAtomCount()];
+		int head=0;
+		int tail=0;
+		queue[tail++]=from;
+		while(head<tail && parent[to]<0){
+			TimeLimiter.checkInterrupted();
+			int a=queue[head++];
+			for(int j=0;j<neighbors[a].length;j++){
+				int n=neighbors[a][j];
+				if(neighborBonds[a][j]!=skip && parent[n]<0){
+					parent[n]=a;
+					queue[tail++]=n;
+				}
+			}
+		}
+		if(parent[to]<0){
+			return null;
+		}
+		int length=1;
+		for(int a=to;a!=from;a=parent[a]){
+			length++;
+		}
+		Atom[] path = new Atom[length];
+		for(int a=to, i=length-1;i>=0;a=parent[a], i--){
+			path[i]=atoms[a];
+		}
+		return Collections.unmodifiableList(Arrays.asList(path));
+	}
+}
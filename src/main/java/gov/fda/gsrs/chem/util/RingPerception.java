@@ -0,0 +1,191 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.Arrays;
+
+/**
+ * Smallest ring sizes of the bonds of a structure, from its adjacency
+ * arrays alone.
+ * <p>
+ * Bonds are first split into biconnected components (blocks). A block of a
+ * single bond is a bridge, which can't be in a ring, so most of a peptide
+ * or a long chain is ruled out in one linear pass. Every ring through a
+ * bond lies inside its block, so for each remaining bond a breadth first
+ * search is run from one atom to the other inside the block, without the
+ * bond itself, and stopped at the max ring size. The size is the length
+ * of the shortest path found plus one.
+ * </p>
+ * <p>
+ * Everything is kept in int arrays that are reused from one bond to the
+ * next, so the work is close to linear in the size of the structure for
+ * any fixed max ring size.
+ * </p>
+ */
+public class RingPerception {
+
+	private final int atomCount;
+	private final int bondCount;
+	private final int[][] neighbors;
+	private final int[][] neighborBonds;
+
+	private RingPerception(int[][] neighbors, int[][] neighborBonds, int bondCount){
+		this.atomCount=neighbors.length;
+		this.bondCount=bondCount;
+		this.neighbors=neighbors;
+		this.neighborBonds=neighborBonds;
+	}
+
+	/**
+	 * Size of the smallest ring each bond is in.
+	 * @param neighbors positions of the neighbors of each atom
+	 * @param neighborBonds positions of the bonds to those neighbors, in the same order
+	 * @param bondCount
+	 * @param maxRingSize largest ring size to look for
+	 * @return the size for each bond position, 0 if the bond isn't in a ring
+	 *         of at most maxRingSize
+	 */
+	public static int[] smallestRingSizes(int[][] neighbors, int[][] neighborBonds, int bondCount, int maxRingSize){
+		return new RingPerception(neighbors, neighborBonds, bondCount).smallestRingSizes(maxRingSize);
+	}
+
+	private int[] smallestRingSizes(int maxRingSize){
+		int[] sizes = new int[bondCount];
+		int[] block = blocks();
+		int[] blockBonds = new int[bondCount];
+		for(int b: block){
+			blockBonds[b]++;
+		}
+
+		//one end of each bond
+		int[] from = new int[bondCount];
+		int[] to = new int[bondCount];
+		Arrays.fill(from, -1);
+		for(int a=0;a<atomCount;a++){
+			for(int j=0;j<neighbors[a].length;j++){
+				int b=neighborBonds[a][j];
+				if(from[b]<0){
+					from[b]=a;
+					to[b]=neighbors[a][j];
+				}
+			}
+		}
+
+		int[] dist = new int[atomCount];
+		int[] seen = new int[atomCount];
+		int[] queue = new int[atomCount];
+		for(int b=0;b<bondCount;b++){
+			if(from[b]<0 || blockBonds[block[b]]<2){
+				continue;
+			}
+			TimeLimiter.checkInterrupted();
+			//seen[a]==b+1 means a was reached in the search for bond b
+			int mark=b+1;
+			int head=0;
+			int tail=0;
+			queue[tail++]=from[b];
+			seen[from[b]]=mark;
+			dist[from[b]]=0;
+			int found=0;
+			search:
+			while(head<tail){
+				int a=queue[head++];
+				if(dist[a]+1>maxRingSize-1){
+					break;
+				}
+				for(int j=0;j<neighbors[a].length;j++){
+					int nb=neighborBonds[a][j];
+					if(nb==b || block[nb]!=block[b]){
+						continue;
+					}
+					int n=neighbors[a][j];
+					if(seen[n]==mark){
+						continue;
+					}
+					if(n==to[b]){
+						found=dist[a]+2;
+						break search;
+					}
+					seen[n]=mark;
+					dist[n]=dist[a]+1;
+					queue[tail++]=n;
+				}
+			}
+			sizes[b]=found;
+		}
+		return sizes;
+	}
+
+	/**
+	 * Biconnected component of each bond, by Tarjan's algorithm, with an
+	 * explicit stack so long chains can't overflow the call stack.
+	 * @return the component id of each bond position
+	 */
+	private int[] blocks(){
+		int[] block = new int[bondCount];
+		Arrays.fill(block, -1);
+		int[] disc = new int[atomCount];
+		int[] low = new int[atomCount];
+		int[] parentBond = new int[atomCount];
+		int[] parentAtom = new int[atomCount];
+		int[] next = new int[atomCount];
+		int[] atomStack = new int[atomCount];
+		int[] bondStack = new int[bondCount];
+		int time=0;
+		int blocks=0;
+		for(int root=0;root<atomCount;root++){
+			if(disc[root]!=0){
+				continue;
+			}
+			int atoms=0;
+			int bonds=0;
+			disc[root]=low[root]=++time;
+			parentBond[root]=-1;
+			parentAtom[root]=-1;
+			atomStack[atoms++]=root;
+			while(atoms>0){
+				int v=atomStack[atoms-1];
+				if(next[v]<neighbors[v].length){
+					int j=next[v]++;
+					int w=neighbors[v][j];
+					int b=neighborBonds[v][j];
+					if(b==parentBond[v]){
+						continue;
+					}
+					if(disc[w]==0){
+						bondStack[bonds++]=b;
+						parentBond[w]=b;
+						parentAtom[w]=v;
+						disc[w]=low[w]=++time;
+						atomStack[atoms++]=w;
+					}else if(disc[w]<disc[v]){
+						//back edge to an ancestor
+						bondStack[bonds++]=b;
+						low[v]=Math.min(low[v], disc[w]);
+					}
+				}else{
+					atoms--;
+					int u=parentAtom[v];
+					if(u<0){
+						continue;
+					}
+					low[u]=Math.min(low[u], low[v]);
+					if(low[v]>=disc[u]){
+						//u separates the bonds above v from the rest
+						int b;
+						do{
+							b=bondStack[--bonds];
+							block[b]=blocks;
+						}while(b!=parentBond[v]);
+						blocks++;
+					}
+				}
+			}
+		}
+		//bonds that aren't reached, like ones to atoms that aren't listed
+		for(int b=0;b<bondCount;b++){
+			if(block[b]<0){
+				block[b]=blocks++;
+			}
+		}
+		return block;
+	}
+}
@@ -0,0 +1,156 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits SMILES text into its '.' separated fragments without parsing it,
+ * and counts the atoms each fragment will have once parsed. Parsers add atoms
+ * in the order they are written, so the fragments line up with consecutive
+ * runs of atoms in the parsed structure.
+ */
+public class SmilesFragments {
+
+	private final List<String> fragments;
+	private final int[] starts;
+
+	private SmilesFragments(List<String> fragments, int[] starts){
+		this.fragments=fragments;
+		this.starts=starts;
+	}
+
+	/**
+	 * Splits the given SMILES, or returns null if it can't be split safely,
+	 * like when a ring closure joins two fragments, or for syntax that isn't
+	 * understood here.
+	 * @param smiles
+	 * @return
+	 */
+	public static SmilesFragments split(String smiles){
+		List<String> fragments = new ArrayList<>();
+		int start=0;
+		int depth=0;
+		for(int i=0;i<smiles.length();i++){
+			char ch=smiles.charAt(i);
+			if(ch=='['){
+				depth++;
+			}else if(ch==']'){
+				depth--;
+			}else if(ch=='.' && depth==0){
+				fragments.add(smiles.substring(start, i));
+				start=i+1;
+			}
+		}
+		fragments.add(smiles.substring(start));
+
+		int[] starts = new int[fragments.size()+1];
+		for(int i=0;i<fragments.size();i++){
+			int n = atomCount(fragments.get(i));
+			if(n<=0){
+				return null;
+			}
+			starts[i+1]=starts[i]+n;
+		}
+		return new SmilesFragments(fragments, starts);
+	}
+
+	/**
+	 * Number of atoms in a single fragment, or -1 if it isn't a fragment
+	 * that can be counted, or has ring closures that aren't closed in it.
+	 * @param fragment
+	 * @return
+	 */
+	static int atomCount(String fragment){
+		int atoms=0;
+		Set<Integer> openRings = new HashSet<>();
+		int i=0;
+		while(i<fragment.length()){
+			char ch=fragment.charAt(i);
+			if(ch=='['){
+				int end=fragment.indexOf(']', i);
+				if(end<0){
+					return -1;
+				}
+				atoms++;
+				i=end+1;
+				continue;
+			}
+			int ring=-1;
+			if(ch>='0' && ch<='9'){
+				ring=ch-'0';
+			}else if(ch=='%'){
+				if(i+2>=fragment.length() || !Character.isDigit(fragment.charAt(i+1)) || !Character.isDigit(fragment.charAt(i+2))){
+					return -1;
+				}
+				ring=Integer.parseInt(fragment.substring(i+1, i+3));
+				i+=2;
+			}
+			if(ring>=0){
+				if(!openRings.remove(ring)){
+					openRings.add(ring);
+				}
+			}else if((ch=='C' || ch=='B') && i+1<fragment.length() && fragment.charAt(i+1)==((ch=='C')?'l':'r')){
+				atoms++;
+				i++;
+			}else if("BCNOPSFIbcnops*".indexOf(ch)>=0){
+				atoms++;
+			}else if("-=#$:/\\()".indexOf(ch)<0){
+				return -1;
+			}
+			i++;
+		}
+		if(!openRings.isEmpty()){
+			return -1;
+		}
+		return atoms;
+	}
+
+	public int size(){
+		return fragments.size();
+	}
+
+	public String get(int i){
+		return fragments.get(i);
+	}
+
+	/**
+	 * Total atoms in all the fragments.
+	 * @return
+	 */
+	public int atomCount(){
+		return starts[starts.length-1];
+	}
+
+	/**
+	 * The fragment that the atom at the given position belongs to.
+	 * @param atomIndex 0-based position of the atom in the parsed structure
+	 * @return the fragment index, or -1 if out of range
+	 */
+	public int fragmentOf(int atomIndex){
+		if(atomIndex<0 || atomIndex>=atomCount()){
+			return -1;
+		}
+		int lo=0;
+		int hi=fragments.size()-1;
+		while(lo<hi){
+			int mid=(lo+hi+1)>>>1;
+			if(starts[mid]<=atomIndex){
+				lo=mid;
+			}else{
+				hi=mid-1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Number of atoms in the given fragment.
+	 * @param i
+	 * @return
+	 */
+	public int atomCount(int i){
+		return starts[i+1]-starts[i];
+	}
+}
@@ -0,0 +1,113 @@
+package gov.fda.gsrs.chem.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Utility for running a task with a time budget. The task is run on
+ * the calling thread, and a single shared watchdog thread interrupts it
+ * if the budget expires. No thread is ever left running a task nobody
+ * waits for, so a batch full of slow structures can't pile up threads
+ * and use more processors than it has workers.
+ *
+ * Long running loops in this package call {@link #checkInterrupted()}
+ * so an interrupted task normally stops soon after. Work done inside
+ * the toolkit (e.g. layout) can't be interrupted, in which case the
+ * task runs to the end first, and its result is thrown away.
+ *
+ */
+public class TimeLimiter {
+
+	private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, r->{
+		Thread t = new Thread(r, "time-limit-watchdog");
+		t.setDaemon(true);
+		return t;
+	});
+	static{
+		//most tasks finish in time, don't keep their cancelled checks around
+		watchdog.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Interrupts the thread running a task when its time is up, unless
+	 * the task finished first.
+	 */
+	private static class Watch implements Runnable{
+		private final Thread runner;
+		private boolean finished;
+		private boolean fired;
+
+		Watch(Thread runner){
+			this.runner=runner;
+		}
+
+		@Override
+		public synchronized void run(){
+			if(!finished){
+				fired=true;
+				runner.interrupt();
+			}
+		}
+
+		/**
+		 * Marks the task as finished, clearing the interrupt if it was sent.
+		 * @return whether the time ran out first
+		 */
+		synchronized boolean finish(){
+			finished=true;
+			if(fired){
+				Thread.interrupted();
+			}
+			return fired;
+		}
+	}
+
+	/**
+	 * Calls the supplied task on the current thread, interrupting it once
+	 * timeoutMillis have passed. A timeout of 0 or less means no limit.
+	 *
+	 * @param task
+	 * @param timeoutMillis
+	 * @return
+	 * @throws TimeoutException if the task didn't finish in time, whatever
+	 *         it returned or threw after being interrupted
+	 * @throws Exception any exception thrown by the task
+	 */
+	public static <T> T call(Callable<T> task, long timeoutMillis) throws Exception{
+		if(timeoutMillis<=0){
+			return task.call();
+		}
+		Watch watch = new Watch(Thread.currentThread());
+		ScheduledFuture<?> check = watchdog.schedule(watch, timeoutMillis, TimeUnit.MILLISECONDS);
+		T result;
+		try{
+			result = task.call();
+		}catch(Exception | Error e){
+			if(watch.finish()){
+				throw new TimeoutException("Took longer than " + timeoutMillis + "ms");
+			}
+			throw e;
+		}finally{
+			check.cancel(false);
+		}
+		if(watch.finish()){
+			throw new TimeoutException("Took longer than " + timeoutMillis + "ms");
+		}
+		return result;
+	}
+
+	/**
+	 * Throws a {@link CancellationException} if the current thread
+	 * has been interrupted, which is how abandoned tasks are stopped.
+	 * The interrupt flag is left set.
+	 */
+	public static void checkInterrupted(){
+		if(Thread.currentThread().isInterrupted()){
+			throw new CancellationException("Interrupted");
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package gov.fda.gsrs.ndsri;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureJob;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureResponse;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+
+/**
+ * Non-blocking entry point for featurizing, for embedding in a service.
+ * Each submitted {@link FeatureJob} is run on the given {@link Executor}
+ * and the responses are given back as a {@link CompletableFuture}.
+ * <p>
+ * If no executor is given, a virtual thread per task executor is used
+ * when running on Java 21 or later, and otherwise a fixed pool with one
+ * daemon thread per available processor.
+ * </p>
+ * <p>
+ * Lines submitted while a line with the same structure, NNO instance and
+ * options is still being featurized share that work, each getting its own
+ * copy of the responses with its own name.
+ * </p>
+ *
+ */
+public class AsyncFeaturizer implements AutoCloseable{
+
+	private final Executor executor;
+	//only set when the executor was made here, so it's ours to shut down
+	private final ExecutorService ownedExecutor;
+	private final long timeoutMillis;
+
+	private final SingleFlight<String,List<FeatureResponse>> inFlight = new SingleFlight<>();
+
+	/**
+	 * Uses the default executor and no timeout.
+	 */
+	public AsyncFeaturizer(){
+		this(0);
+	}
+
+	/**
+	 * Uses the default executor.
+	 * @param timeoutMillis the most time to spend on one job, 0 or less for no limit
+	 */
+	public AsyncFeaturizer(long timeoutMillis){
+		ExecutorService es = defaultExecutor();
+		this.executor=es;
+		this.ownedExecutor=es;
+		this.timeoutMillis=timeoutMillis;
+	}
+
+	/**
+	 * Runs jobs on the given executor, which is left running
+	 * when this featurizer is closed.
+	 * @param executor
+	 * @param timeoutMillis the most time to spend on one job, 0 or less for no limit
+	 */
+	public AsyncFeaturizer(Executor executor, long timeoutMillis){
+		if(executor==null){
+			throw new IllegalArgumentException("executor can't be null");
+		}
+		this.executor=executor;
+		this.ownedExecutor=null;
+		this.timeoutMillis=timeoutMillis;
+	}
+
+	public Executor getExecutor(){
+		return executor;
+	}
+
+	public long getTimeoutMillis(){
+		return timeoutMillis;
+	}
+
+	/**
+	 * Lines that were featurized, and lines that shared the work of
+	 * another line instead.
+	 * @return
+	 */
+	public SingleFlight<String,List<FeatureResponse>> getInFlight(){
+		return inFlight;
+	}
+
+	/**
+	 * Featurizes the job on the executor. The future completes
+	 * exceptionally if featurizing fails. A job that runs out of time
+	 * completes normally with a single timed out response.
+	 * @param job
+	 * @return
+	 */
+	public CompletableFuture<List<FeatureResponse>> submit(FeatureJob job){
+		return CompletableFuture.supplyAsync(()->{
+			try{
+				return FeaturizeNitrosamine.fingerprintNitrosamine(job, timeoutMillis);
+			}catch(RuntimeException e){
+				throw e;
+			}catch(Exception e){
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Splits an input line (same format as the command line input) into
+	 * jobs using the given options, and featurizes all of them. The
+	 * responses are in the same order as the command line output.
+	 * @param line
+	 * @param parsedOptions
+	 * @return
+	 */
+	public CompletableFuture<List<FeatureResponse>> submitLine(String line, ParsedOptions parsedOptions){
+		String[] cols = line.trim().split("\t");
+		if(cols.length<2){
+			return featurizeLine(line, parsedOptions);
+		}
+		String key = ResultCache.fingerprint(parsedOptions) + "\t" + cols[1].trim() + "\t" + ((cols.length>=3)?cols[2]:"");
+		//every caller gets copies, so the shared responses are never handed out
+		return inFlight.submit(key, ()->featurizeLine(line, parsedOptions))
+				.thenApply(resp->{
+					List<FeatureResponse> copies = new ArrayList<>(resp.size());
+					for(FeatureResponse fr: resp){
+						copies.add(fr.copyWithName(cols[0]));
+					}
+					return copies;
+				});
+	}
+
+	private CompletableFuture<List<FeatureResponse>> featurizeLine(String line, ParsedOptions parsedOptions){
+		return CompletableFuture.supplyAsync(()->FeaturizeNitrosamine.toFeatureJobs(line, parsedOptions), executor)
+		.thenCompose(jobs->{
+			@SuppressWarnings("unchecked")
+			CompletableFuture<List<FeatureResponse>>[] futures = jobs.stream()
+					.map(this::submit)
+					.toArray(CompletableFuture[]::new);
+			return CompletableFuture.allOf(futures)
+					.thenApply(v->{
+						List<FeatureResponse> all = new ArrayList<>();
+						for(CompletableFuture<List<FeatureResponse>> f: futures){
+							all.addAll(f.join());
+						}
+						return all;
+					});
+		});
+	}
+
+	/**
+	 * Shuts down the default executor, if that's what is being used.
+	 * Jobs that were already submitted still finish.
+	 */
+	@Override
+	public void close(){
+		if(ownedExecutor!=null){
+			ownedExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * A virtual thread per task executor if the running JVM has them (Java 21+),
+	 * otherwise a fixed size pool of daemon threads, one per processor.
+	 * Looked up reflectively since this is compiled for Java 8.
+	 * @return
+	 */
+	public static ExecutorService defaultExecutor(){
+		try{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		}catch(Exception e){
+			//not available, fall through
+		}
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				FeaturizePipeline.daemonThreadFactory("featurize-async"));
+	}
+}
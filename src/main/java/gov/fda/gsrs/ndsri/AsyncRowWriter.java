@@ -0,0 +1,166 @@
+package gov.fda.gsrs.ndsri;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes output rows on its own thread, through a large buffer. The buffer
+ * is written out when it fills up, or when rows have been waiting in it for
+ * longer than the flush interval, so slow inputs still show up promptly
+ * without paying for a flush on every row.
+ * <p>
+ * Rows are handed over through a bounded queue, so a slow output blocks
+ * the producers instead of piling rows up in memory. Any error writing is
+ * thrown from the next call to {@link #accept(String)} or from
+ * {@link #close()}.
+ * </p>
+ */
+public class AsyncRowWriter implements Consumer<String>, Closeable{
+
+	public static final int DEFAULT_BUFFER_SIZE = 1<<20;
+	public static final long DEFAULT_FLUSH_MILLIS = 500;
+	private static final int QUEUE_CAPACITY = 4096;
+
+	//compared by identity, marks that there are no more rows
+	private static final String END = new String("END");
+
+	private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final Writer out;
+	private final OutputStream underlying;
+	private final boolean closeUnderlying;
+	private final long flushMillis;
+	private final String lineSeparator = System.lineSeparator();
+	private final Thread thread;
+
+	private volatile Throwable error;
+	private boolean closed=false;
+
+	/**
+	 * Uses the default buffer size and flush interval.
+	 * @param os
+	 * @param closeUnderlying whether to close os when this is closed, otherwise it's only flushed
+	 */
+	public AsyncRowWriter(OutputStream os, boolean closeUnderlying){
+		this(os, closeUnderlying, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_MILLIS);
+	}
+
+	/**
+	 * @param os
+	 * @param closeUnderlying whether to close os when this is closed, otherwise it's only flushed
+	 * @param bufferSize number of bytes buffered before writing to os
+	 * @param flushMillis longest time a row is held in the buffer
+	 */
+	public AsyncRowWriter(OutputStream os, boolean closeUnderlying, int bufferSize, long flushMillis){
+		this.underlying=os;
+		this.closeUnderlying=closeUnderlying;
+		this.out=new OutputStreamWriter(new BufferedOutputStream(os, bufferSize), StandardCharsets.UTF_8);
+		this.flushMillis=flushMillis;
+		this.thread=FeaturizePipeline.daemonThreadFactory("featurize-output").newThread(this::writeLoop);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues one row (without a line separator) to be written.
+	 */
+	@Override
+	public void accept(String row){
+		try{
+			while(!queue.offer(row, 100, TimeUnit.MILLISECONDS)){
+				checkError();
+			}
+			checkError();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while writing output", e);
+		}
+	}
+
+	private void checkError(){
+		Throwable t = error;
+		if(t!=null){
+			if(t instanceof IOException){
+				throw new UncheckedIOException((IOException)t);
+			}
+			throw new IllegalStateException("Unable to write output", t);
+		}
+	}
+
+	private void writeLoop(){
+		try{
+			boolean dirty=false;
+			long flushBy=0;
+			while(true){
+				String row;
+				if(dirty){
+					row = queue.poll(Math.max(0, flushBy-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}else{
+					row = queue.take();
+				}
+				if(row==END){
+					break;
+				}
+				if(row!=null){
+					out.write(row);
+					out.write(lineSeparator);
+					if(!dirty){
+						dirty=true;
+						flushBy=System.currentTimeMillis()+flushMillis;
+					}
+				}
+				if(dirty && System.currentTimeMillis()>=flushBy){
+					out.flush();
+					dirty=false;
+				}
+			}
+			out.flush();
+		}catch(Throwable t){
+			error=t;
+			//keep taking rows so producers don't block, they'll see the error
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Writes any rows still queued, and waits for them to be written.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException{
+		if(closed){
+			return;
+		}
+		closed=true;
+		try{
+			while(!queue.offer(END, 100, TimeUnit.MILLISECONDS)){
+				if(error!=null){
+					break;
+				}
+			}
+			thread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing output", e);
+		}finally{
+			if(closeUnderlying){
+				underlying.close();
+			}
+		}
+		Throwable t = error;
+		if(t!=null){
+			if(t instanceof IOException){
+				throw (IOException)t;
+			}
+			throw new IOException("Unable to write output", t);
+		}
+	}
+}
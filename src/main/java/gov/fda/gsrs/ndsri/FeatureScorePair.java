@@ -2,9 +2,9 @@ package gov.fda.gsrs.ndsri;
 
 public class FeatureScorePair{
 	
-	String featureName;
+	final String featureName;
 	
-	String scoreName;
+	final String scoreName;
 	
 	public FeatureScorePair(String featureName,String scoreName){
 		this.featureName=featureName;
@@ -26,16 +26,8 @@ public class FeatureScorePair{
 		return featureName;
 	}
 
-	public void setFeatureName(String featureName) {
-		this.featureName = featureName;
-	}
-
 	public String getScoreName() {
 		return scoreName;
 	}
 
-	public void setScoreName(String scoreName) {
-		this.scoreName = scoreName;
-	}
-
-}
\ No newline at end of file
+}
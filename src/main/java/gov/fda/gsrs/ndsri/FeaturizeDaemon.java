@@ -0,0 +1,113 @@
+package gov.fda.gsrs.ndsri;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+
+/**
+ * Long running mode, so the JVM and toolkit startup is only paid once.
+ * <p>
+ * Requests are read one line at a time, in the same tab-delimited format
+ * as the input file (name, SMILES and optionally NNO instance). For every
+ * request line the output rows for it are written back, followed by an
+ * empty line to mark the end of that response, since one line can give
+ * any number of rows. Empty request lines are ignored. The header line is
+ * written once at the start of each session, unless headers are turned off.
+ * </p>
+ * <p>
+ * Requests are either read from standard input, or from any number of
+ * connections to a TCP port on the loopback address.
+ * </p>
+ */
+public class FeaturizeDaemon {
+
+	private final ParsedOptions parsedOptions;
+
+	public FeaturizeDaemon(ParsedOptions parsedOptions){
+		this.parsedOptions=parsedOptions;
+	}
+
+	/**
+	 * Serves requests from standard input until it is closed. Anything else
+	 * written to standard output along the way is sent to standard error
+	 * instead, so it can't get mixed into the responses.
+	 * @throws IOException
+	 */
+	public void serveStandardStreams() throws IOException{
+		PrintStream realOut = System.out;
+		System.setOut(System.err);
+		FeaturizeNitrosamine.setupSTDFilter();
+		FeaturizeNitrosamine.warmUp();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(realOut, StandardCharsets.UTF_8)));
+		serve(in, out);
+	}
+
+	/**
+	 * Listens on the given port of the loopback address, serving each
+	 * connection on its own thread. This doesn't return.
+	 * @param port
+	 * @throws IOException
+	 */
+	public void listen(int port) throws IOException{
+		FeaturizeNitrosamine.setupSTDFilter();
+		FeaturizeNitrosamine.warmUp();
+
+		ExecutorService connections = Executors.newCachedThreadPool(FeaturizePipeline.daemonThreadFactory("featurize-connection"));
+		try(ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())){
+			System.err.println("Listening for featurize requests on " + server.getLocalSocketAddress());
+			while(true){
+				Socket socket = server.accept();
+				connections.execute(()->{
+					try(Socket s = socket){
+						BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+						PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)));
+						serve(in, out);
+					}catch(IOException e){
+						System.err.println("Connection closed: " + e.getMessage());
+					}
+				});
+			}
+		}finally{
+			connections.shutdownNow();
+		}
+	}
+
+	/**
+	 * Answers every request line read from in, until the end of input.
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public void serve(BufferedReader in, PrintWriter out) throws IOException{
+		if(parsedOptions.addHeaders){
+			out.println(FeaturizeNitrosamine.headerLine(parsedOptions));
+			out.flush();
+		}
+		String line;
+		while((line=in.readLine())!=null){
+			if(line.trim().isEmpty()){
+				continue;
+			}
+			FeaturizeNitrosamine.featurizeLine(line, parsedOptions, out::println);
+			out.println();
+			out.flush();
+			if(out.checkError()){
+				throw new IOException("Unable to write response");
+			}
+		}
+	}
+}
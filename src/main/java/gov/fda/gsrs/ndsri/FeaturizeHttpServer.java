@@ -0,0 +1,262 @@
+package gov.fda.gsrs.ndsri;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureResponse;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+
+/**
+ * Small HTTP service over the featurizer, using the server built into the JDK.
+ * Responses are tab-delimited, with the same columns (and header line, unless
+ * headers are turned off) as the command line output.
+ *
+ * <pre>
+ * GET  /featurize?smiles=...[&amp;name=...][&amp;nno=...]   one structure
+ * POST /featurize/batch                             one input line per structure
+ * </pre>
+ *
+ * The batch body uses the same format as the input file, without a header
+ * line. The lines of a batch are featurized in parallel on a shared worker
+ * pool, and the rows are written back in the order of the request. The
+ * result cache and structure dedup are used the same way as for an input file.
+ */
+public class FeaturizeHttpServer {
+
+	//most lines accepted in one batch request
+	public static final int MAX_BATCH_LINES = 10000;
+
+	private static final String CONTENT_TYPE = "text/tab-separated-values; charset=utf-8";
+
+	private final ParsedOptions parsedOptions;
+	private final AsyncFeaturizer featurizer;
+
+	/**
+	 * @param parsedOptions
+	 * @param workers number of threads featurizing structures
+	 */
+	public FeaturizeHttpServer(ParsedOptions parsedOptions, int workers){
+		this.parsedOptions=parsedOptions;
+		ExecutorService pool = Executors.newFixedThreadPool(workers, FeaturizePipeline.daemonThreadFactory("featurize-http-worker"));
+		this.featurizer=new AsyncFeaturizer(pool, parsedOptions.timeoutMillis);
+	}
+
+	/**
+	 * Starts listening on the given port of the loopback address and returns
+	 * the running server.
+	 * @param port
+	 * @return
+	 * @throws IOException
+	 */
+	public HttpServer start(int port) throws IOException{
+		FeaturizeNitrosamine.setupSTDFilter();
+		FeaturizeNitrosamine.warmUp();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/featurize/batch", ex->handle(ex, this::batch));
+		server.createContext("/featurize", ex->handle(ex, this::single));
+		server.setExecutor(Executors.newCachedThreadPool(FeaturizePipeline.daemonThreadFactory("featurize-http")));
+		server.start();
+		System.err.println("Listening for featurize requests on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/featurize");
+		return server;
+	}
+
+	private interface Handler{
+		List<String> lines(HttpExchange ex) throws IOException, RequestException;
+	}
+
+	private static class RequestException extends Exception{
+		private final int status;
+
+		RequestException(int status, String message){
+			super(message);
+			this.status=status;
+		}
+	}
+
+	private void handle(HttpExchange ex, Handler handler) throws IOException{
+		try{
+			List<String> lines;
+			try{
+				lines = handler.lines(ex);
+			}catch(RequestException e){
+				send(ex, e.status, e.getMessage() + "\n");
+				return;
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+			if(parsedOptions.addHeaders){
+				pw.println(FeaturizeNitrosamine.headerLine(parsedOptions));
+			}
+			writeRows(lines, pw);
+			pw.flush();
+			ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			ex.sendResponseHeaders(200, body.size());
+			try(OutputStream os = ex.getResponseBody()){
+				body.writeTo(os);
+			}
+		}catch(Throwable t){
+			t.printStackTrace();
+			send(ex, 500, "Unable to featurize request\n");
+		}finally{
+			ex.close();
+		}
+	}
+
+	private void writeRows(List<String> lines, PrintWriter pw){
+		List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+		for(String line: lines){
+			futures.add(rows(line));
+		}
+		for(CompletableFuture<List<String>> f: futures){
+			List<String> rows;
+			try{
+				rows = f.join();
+			}catch(Exception e){
+				//same as the command line, a failed line just gives no rows
+				e.printStackTrace();
+				continue;
+			}
+			rows.forEach(pw::println);
+		}
+	}
+
+	/**
+	 * Output rows of one input line, from the result cache or structure
+	 * dedup when they're turned on, the same as for an input file.
+	 */
+	private CompletableFuture<List<String>> rows(String line){
+		String dedupKey;
+		List<String> known;
+		try{
+			dedupKey = FeaturizePipeline.dedupKey(line, parsedOptions);
+			known = FeaturizePipeline.knownRows(line, dedupKey, parsedOptions);
+		}catch(Throwable t){
+			//featurize it as if nothing was known
+			t.printStackTrace();
+			dedupKey = null;
+			known = null;
+		}
+		if(known!=null){
+			return CompletableFuture.completedFuture(known);
+		}
+		String key = dedupKey;
+		return featurizer.submitLine(line, parsedOptions)
+				.thenApply(resp->{
+					List<String> rows = new ArrayList<>(resp.size());
+					boolean complete = true;
+					for(FeatureResponse fr: resp){
+						if(fr.isTimedOut()){
+							complete=false;
+						}
+						rows.add(FeaturizeNitrosamine.formatResponse(fr, parsedOptions));
+					}
+					if(complete){
+						FeaturizePipeline.remember(line, key, rows, parsedOptions);
+					}
+					return rows;
+				});
+	}
+
+	private List<String> single(HttpExchange ex) throws IOException, RequestException{
+		if(!"GET".equalsIgnoreCase(ex.getRequestMethod())){
+			throw new RequestException(405, "Use GET for /featurize");
+		}
+		if(!"/featurize".equals(ex.getRequestURI().getPath())){
+			throw new RequestException(404, "Not found");
+		}
+		Map<String,String> params = parseQuery(ex.getRequestURI().getRawQuery());
+		String smiles = params.get("smiles");
+		if(smiles==null || smiles.trim().isEmpty()){
+			throw new RequestException(400, "Missing smiles parameter");
+		}
+		String name = params.getOrDefault("name", "query");
+		String nno = params.get("nno");
+		//these become the columns of an input line, so they can't split it
+		for(String value: new String[]{name, smiles.trim(), nno}){
+			if(value!=null && (value.indexOf('\t')>=0 || value.indexOf('\n')>=0 || value.indexOf('\r')>=0)){
+				throw new RequestException(400, "Parameters can't contain tabs or line breaks");
+			}
+		}
+		String line = name + "\t" + smiles.trim();
+		if(nno!=null){
+			line += "\t" + nno;
+		}
+		List<String> lines = new ArrayList<>();
+		lines.add(line);
+		return lines;
+	}
+
+	private List<String> batch(HttpExchange ex) throws IOException, RequestException{
+		if(!"POST".equalsIgnoreCase(ex.getRequestMethod())){
+			throw new RequestException(405, "Use POST for /featurize/batch");
+		}
+		List<String> lines = new ArrayList<>();
+		try(BufferedReader br = new BufferedReader(new InputStreamReader(ex.getRequestBody(), StandardCharsets.UTF_8))){
+			String line;
+			while((line=br.readLine())!=null){
+				if(line.trim().isEmpty()){
+					continue;
+				}
+				if(lines.size()>=MAX_BATCH_LINES){
+					throw new RequestException(413, "Too many lines, at most " + MAX_BATCH_LINES + " per batch");
+				}
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	private static Map<String,String> parseQuery(String rawQuery) throws UnsupportedEncodingException, RequestException{
+		Map<String,String> params = new HashMap<>();
+		if(rawQuery==null){
+			return params;
+		}
+		for(String kv: rawQuery.split("&")){
+			int i = kv.indexOf('=');
+			if(i<0){
+				continue;
+			}
+			try{
+				params.put(URLDecoder.decode(kv.substring(0, i), "UTF-8"), URLDecoder.decode(kv.substring(i+1), "UTF-8"));
+			}catch(IllegalArgumentException e){
+				//a bad percent-escape, like %E
+				throw new RequestException(400, "Malformed query string");
+			}
+		}
+		return params;
+	}
+
+	private static void send(HttpExchange ex, int status, String message){
+		try{
+			byte[] b = message.getBytes(StandardCharsets.UTF_8);
+			ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			ex.sendResponseHeaders(status, b.length);
+			try(OutputStream os = ex.getResponseBody()){
+				os.write(b);
+			}
+		}catch(IOException e){
+			//response already started or client gone
+		}
+	}
+}
@@ -3,9 +3,13 @@ package gov.fda.gsrs.ndsri;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -13,16 +17,17 @@ import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -35,13 +40,18 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import gov.fda.gsrs.chem.util.AtomEnvironment;
 import gov.fda.gsrs.chem.util.AtomTest;
 import gov.fda.gsrs.chem.util.BondTest;
 import gov.fda.gsrs.chem.util.ChemUtil;
 import gov.fda.gsrs.chem.util.GeomUtil;
+import gov.fda.gsrs.chem.util.GraphSearch;
+import gov.fda.gsrs.chem.util.InChIKeyCache;
+import gov.fda.gsrs.chem.util.MolGraph;
+import gov.fda.gsrs.chem.util.RingIndex;
+import gov.fda.gsrs.chem.util.SmilesFragments;
+import gov.fda.gsrs.chem.util.TimeLimiter;
 import gov.nih.ncats.common.Tuple;
-import gov.nih.ncats.common.stream.StreamUtil;
-import gov.nih.ncats.common.util.CachedSupplier;
 import gov.nih.ncats.molwitch.Atom;
 import gov.nih.ncats.molwitch.AtomCoordinates;
 import gov.nih.ncats.molwitch.Bond;
@@ -57,9 +67,19 @@ import gov.nih.ncats.molwitch.Chemical;
  */
 public class FeaturizeNitrosamine {
 	
+	/**
+	 * Defaults for {@link FeaturizeSettings}. These are only read when a
+	 * {@link FeatureJob} is made without its own settings, so changing them
+	 * doesn't affect jobs that already exist.
+	 */
 	public static class GLOBAL_SETTINGS{
 		public static final String ARTIFACT_NAME = "Featureize-Nitrosamines-0.0.1-SNAPSHOT-jar-with-dependencies.jar";
 
+		//Version of the featurization itself. Bump it whenever a change to
+		//the code gives different rows for some input, so rows cached by an
+		//earlier version (see ResultCache) stop being used.
+		public static final int FEATURIZER_VERSION = 2;
+
 		//If true, the uncharged carboxylic groups from salt splitting
 		//will still be considered acidic. Otherwise only COOH will
 		//count
@@ -77,43 +97,119 @@ public class FeaturizeNitrosamine {
 	}
 
 	public static class FeaturePairRegistry{
-		public static FeatureScorePair ALPHA_HYDROGENS = new FeatureScorePair("Alpha-Hydrogens", "Alpha-hydrogen score");
-		public static FeatureScorePair TERT_ALPHA_HYDROGENS = new FeatureScorePair("Tertiary alpha-carbon?", "Tertiary alpha-carbon score");
-		public static FeatureScorePair COOH = new FeatureScorePair("Carboxylic acid anywhere in the molecule?", "Carboxylic acid anywhere in the molecule score");
-		public static FeatureScorePair PYRROLIDINE = new FeatureScorePair("NNO in pyrrolidine ring?", "NNO in pyrrolidine ring score");
+		public static final FeatureScorePair ALPHA_HYDROGENS = new FeatureScorePair("Alpha-Hydrogens", "Alpha-hydrogen score");
+		public static final FeatureScorePair TERT_ALPHA_HYDROGENS = new FeatureScorePair("Tertiary alpha-carbon?", "Tertiary alpha-carbon score");
+		public static final FeatureScorePair COOH = new FeatureScorePair("Carboxylic acid anywhere in the molecule?", "Carboxylic acid anywhere in the molecule score");
+		public static final FeatureScorePair PYRROLIDINE = new FeatureScorePair("NNO in pyrrolidine ring?", "NNO in pyrrolidine ring score");
 
-		public static FeatureScorePair S_IN6_RING = new FeatureScorePair("NNO in 6-membered ring with S?","NNO in 6-membered ring with S score");
+		public static final FeatureScorePair S_IN6_RING = new FeatureScorePair("NNO in 6-membered ring with S?","NNO in 6-membered ring with S score");
 
-		public static FeatureScorePair IN5_OR_6_RING = new FeatureScorePair("NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine)?", "NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine) score");
+		public static final FeatureScorePair IN5_OR_6_RING = new FeatureScorePair("NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine)?", "NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine) score");
 
-		public static FeatureScorePair MORPHOLINE = new FeatureScorePair("NNO in morpholine ring?","NNO in morpholine ring score");
+		public static final FeatureScorePair MORPHOLINE = new FeatureScorePair("NNO in morpholine ring?","NNO in morpholine ring score");
 
-		public static FeatureScorePair IN7_RING = new FeatureScorePair("NNO in a 7-membered ring?", "NNO in a 7-membered ring score");
+		public static final FeatureScorePair IN7_RING = new FeatureScorePair("NNO in a 7-membered ring?", "NNO in a 7-membered ring score");
 
 
-		public static FeatureScorePair CHAIN5_BOTH = new FeatureScorePair("Chains of >=5-non-H atoms on both sides of NNO?", "Chains of >=5-non-H atoms on both sides of NNO score");
+		public static final FeatureScorePair CHAIN5_BOTH = new FeatureScorePair("Chains of >=5-non-H atoms on both sides of NNO?", "Chains of >=5-non-H atoms on both sides of NNO score");
 
-		public static FeatureScorePair EWG_ONE_SIDE = new FeatureScorePair("EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone)?","EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone) score");
-		public static FeatureScorePair EWG_BOTH_SIDES = new FeatureScorePair("EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone)?","EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone) score");
+		public static final FeatureScorePair EWG_ONE_SIDE = new FeatureScorePair("EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone)?","EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone) score");
+		public static final FeatureScorePair EWG_BOTH_SIDES = new FeatureScorePair("EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone)?","EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone) score");
 
-		public static FeatureScorePair BETA_HYDROXYL_ONE_SIDE = new FeatureScorePair("Beta-hydroxyl on ONLY one side?","Beta-hydroxyl on ONLY one side score");
-		public static FeatureScorePair BETA_HYDROXYL_BOTH_SIDES = new FeatureScorePair("Beta-hydroxyl on BOTH sides?" , "Beta-hydroxyl on BOTH sides score");
+		public static final FeatureScorePair BETA_HYDROXYL_ONE_SIDE = new FeatureScorePair("Beta-hydroxyl on ONLY one side?","Beta-hydroxyl on ONLY one side score");
+		public static final FeatureScorePair BETA_HYDROXYL_BOTH_SIDES = new FeatureScorePair("Beta-hydroxyl on BOTH sides?" , "Beta-hydroxyl on BOTH sides score");
 
-		public static FeatureScorePair ARYL_ALPHA = new FeatureScorePair("Aryl bonded to alpha-carbon?","Aryl bonded to alpha-carbon score");
-		public static FeatureScorePair METHYL_BETA = new FeatureScorePair("Methyl group on beta-carbon?","Methyl group on beta-carbon score");
+		public static final FeatureScorePair ARYL_ALPHA = new FeatureScorePair("Aryl bonded to alpha-carbon?","Aryl bonded to alpha-carbon score");
+		public static final FeatureScorePair METHYL_BETA = new FeatureScorePair("Methyl group on beta-carbon?","Methyl group on beta-carbon score");
 
 
 		//Legacy cases
-		public static FeatureScorePair PIPERAZINE = new FeatureScorePair("NNO in piperazine?","NNO in piperazine score");
-		public static FeatureScorePair ALLYL_GROUP = new FeatureScorePair("Double bond at beta carbon (allyl group)?","Double bond at beta carbon (allyl group) score");
+		public static final FeatureScorePair PIPERAZINE = new FeatureScorePair("NNO in piperazine?","NNO in piperazine score");
+		public static final FeatureScorePair ALLYL_GROUP = new FeatureScorePair("Double bond at beta carbon (allyl group)?","Double bond at beta carbon (allyl group) score");
 
 	}
 
 	
 
-	static Map<String,SaltInfo> saltTable = SaltInfo.defaultSaltMap();
+	//shared by every thread, so it (and the SaltInfo values) must not be changed
+	static final Map<String,SaltInfo> saltTable = Collections.unmodifiableMap(SaltInfo.defaultSaltMap());
+
+	//counter-ions and solvents come up in almost every salt form, so their
+	//InChIKeys are remembered. Bigger components are usually the unique
+	//active moiety, where the SMILES for the lookup would just be extra work.
+	public static final InChIKeyCache COMPONENT_KEY_CACHE = new InChIKeyCache(1024);
+	private static final int MAX_CACHED_COMPONENT_HEAVY_ATOMS = 40;
+
+	private static String getComponentInchiKey(Chemical cp) throws Exception{
+		if(ChemUtil.heavyAtomCount(cp)<=MAX_CACHED_COMPONENT_HEAVY_ATOMS){
+			return COMPONENT_KEY_CACHE.getKey(cp);
+		}
+		return cp.toInchi().getKey();
+	}
+
+	//InChIKeys by the input text of each '.' separated fragment, so any fragment
+	//seen before, counter-ion or active moiety, needs no SMILES or InChI at all
+	public static final InChIKeyCache FRAGMENT_KEY_CACHE = new InChIKeyCache(4096);
+
+	/**
+	 * Finds the fragment of the input text that each component was parsed
+	 * from, using the atom maps set to atom positions. Returns null if they
+	 * don't line up, like when the structure was changed after parsing.
+	 */
+	private static String[] getFragmentTexts(Chemical c, List<Chemical> components, String smiles){
+		if(smiles==null){
+			return null;
+		}
+		SmilesFragments frags = SmilesFragments.split(smiles);
+		if(frags==null || frags.size()!=components.size() || frags.atomCount()!=c.getAtomCount()){
+			return null;
+		}
+		String[] texts = new String[components.size()];
+		boolean[] used = new boolean[frags.size()];
+		for(int i=0;i<components.size();i++){
+			Chemical cp = components.get(i);
+			int f=-1;
+			for(Atom at: (Iterable<Atom>)cp.atoms()::iterator){
+				int af=frags.fragmentOf(at.getAtomToAtomMap().orElse(0)-1);
+				if(af<0 || (f>=0 && af!=f)){
+					return null;
+				}
+				f=af;
+			}
+			if(f<0 || used[f] || frags.atomCount(f)!=cp.getAtomCount()){
+				return null;
+			}
+			used[f]=true;
+			texts[i]=frags.get(f);
+		}
+		return texts;
+	}
 
 	public static Tuple<SaltInfo, Chemical> saltStrip(Chemical c, boolean makeAtomMap) throws Exception{
+		return saltStrip(c, makeAtomMap, null);
+	}
+
+	/**
+	 * Same as {@link #saltStrip(Chemical, boolean)}, but when the structure is
+	 * still exactly as parsed from the given SMILES, the components are
+	 * recognized from their fragment of the SMILES text where possible.
+	 * @param c
+	 * @param makeAtomMap
+	 * @param smiles the text c was parsed from, or null if unknown
+	 * @return
+	 * @throws Exception
+	 */
+	public static Tuple<SaltInfo, Chemical> saltStrip(Chemical c, boolean makeAtomMap, String smiles) throws Exception{
+		return saltStrip(c, makeAtomMap, smiles, null);
+	}
+
+	/**
+	 * Same as {@link #saltStrip(Chemical, boolean, String)}, but uses the
+	 * InChIKeys of the components found for the same structure before.
+	 * @param componentKeys keys of the components in order, as many as were
+	 *        needed last time. Keys that aren't there yet are added to it. Can be null.
+	 */
+	static Tuple<SaltInfo, Chemical> saltStrip(Chemical c, boolean makeAtomMap, String smiles, List<String> componentKeys) throws Exception{
 
 		c.aromatize();
 		if(makeAtomMap){
@@ -123,13 +219,17 @@ public class FeaturizeNitrosamine {
 
 		SaltInfo sinfo = null;
 		List<Chemical> components = c.connectedComponentsAsStream().collect(Collectors.toList());
+		//only position maps tie the components back to the text
+		String[] texts = makeAtomMap?getFragmentTexts(c, components, smiles):null;
 		if(components.size()==1){
-			sinfo=new SaltInfo(components.get(0).toInchi().getKey(), "<NO SALT>", "AM", "assumed AM");
+			String ikey = componentKey(0, components.get(0), texts, componentKeys, false);
+			sinfo=new SaltInfo(ikey, "<NO SALT>", "AM", "assumed AM");
 		}else{
 			boolean found=false;
 			Map<String,Chemical> keep = new HashMap<>();
-			for(Chemical cp:components){
-				String inchiSalt = cp.toInchi().getKey();
+			for(int ci=0;ci<components.size();ci++){
+				Chemical cp = components.get(ci);
+				String inchiSalt = componentKey(ci, cp, texts, componentKeys, true);
 				SaltInfo saltCMPinfo = saltTable.get(inchiSalt);
 				if(saltCMPinfo!=null){
 					if("USE".equalsIgnoreCase(saltCMPinfo.includeType)){
@@ -138,8 +238,7 @@ public class FeaturizeNitrosamine {
 						found=true;
 						break;
 					}else if("Exclude All".equalsIgnoreCase(saltCMPinfo.includeType)){
-						sinfo=saltCMPinfo;
-						sinfo.includeType="Explicitly Excluded";
+						sinfo=saltCMPinfo.withIncludeType("Explicitly Excluded");
 
 						found=true;	
 						break;
@@ -188,12 +287,33 @@ public class FeaturizeNitrosamine {
 		return Tuple.of(sinfo, c);
 	}
 
+	private static String componentKey(int ci, Chemical cp, String[] texts, List<String> componentKeys, boolean salt) throws Exception{
+		if(componentKeys!=null && ci<componentKeys.size()){
+			return componentKeys.get(ci);
+		}
+		String key;
+		if(texts!=null){
+			key = FRAGMENT_KEY_CACHE.getKey(texts[ci], cp);
+		}else if(salt){
+			key = getComponentInchiKey(cp);
+		}else{
+			key = cp.toInchi().getKey();
+		}
+		if(componentKeys!=null){
+			componentKeys.add(key);
+		}
+		return key;
+	}
+
 
 
 	public static class FeatureResponse{
+		public static final String TIMEOUT_TYPE = "TIMEOUT";
+
 		private String name;
 		private String type;
 		private int count;
+		private boolean timedOut=false;
 		private SaltInfo saltInfo;
 		private Chemical chemical;
 		private Map<String,String> featureSet = new LinkedHashMap<>();
@@ -235,6 +355,50 @@ public class FeaturizeNitrosamine {
 			return chemical;
 		}
 
+		/**
+		 * True if featurization ran out of time, in which case
+		 * there are no features or scores.
+		 * @return
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * Copy of this response with another name, sharing nothing that can
+		 * be changed, so it can be handed to another thread.
+		 * @param name
+		 * @return
+		 */
+		FeatureResponse copyWithName(String name){
+			FeatureResponse resp = new FeatureResponse();
+			resp.name=name;
+			resp.type=type;
+			resp.count=count;
+			resp.timedOut=timedOut;
+			resp.saltInfo=saltInfo;
+			resp.chemical=(chemical==null)?null:chemical.copy();
+			resp.featureSet=new LinkedHashMap<>(featureSet);
+			resp.featureSetScore=new LinkedHashMap<>(featureSetScore);
+			return resp;
+		}
+
+		/**
+		 * Response standing in for a job which ran out of time, carrying
+		 * over the name, input structure and forced NNO instance of the job.
+		 * @param fj
+		 * @return
+		 */
+		public static FeatureResponse timedOut(FeatureJob fj){
+			FeatureResponse resp = new FeatureResponse();
+			resp.name=fj.inputName;
+			resp.chemical=fj.c;
+			resp.count=fj.inputForceNumber;
+			resp.type=TIMEOUT_TYPE;
+			resp.timedOut=true;
+			return resp;
+		}
+
 
 		public Map<String, String> getFeatureSet() {
 			return featureSet;
@@ -306,13 +470,24 @@ public class FeaturizeNitrosamine {
 		private boolean addNitrosamine=false;
 		private Consumer<Tuple<String,Chemical>> cons=(t)->{};
 		private PrintStream outStream = new PrintStream(dummy);
+		private FeaturizeSettings settings;
+		private String inputSmiles;
+		private NormalizedCache normalizedCache;
 
 
 		public FeatureJob(Chemical c) {
+			this(c, FeaturizeSettings.fromGlobalSettings());
+		}
+		public FeatureJob(Chemical c, FeaturizeSettings settings) {
 			this.c=c;
-			inputName=c.getName();			
+			inputName=c.getName();
+			this.settings=Objects.requireNonNull(settings);
 		}
 		public FeatureJob(String name, Chemical c,int forceC, boolean useMap, boolean addNitrosamine, PrintStream pw, Consumer<Tuple<String,Chemical>> cons) {
+			this(name, c, forceC, useMap, addNitrosamine, pw, cons, FeaturizeSettings.fromGlobalSettings());
+		}
+		public FeatureJob(String name, Chemical c,int forceC, boolean useMap, boolean addNitrosamine, PrintStream pw, Consumer<Tuple<String,Chemical>> cons, FeaturizeSettings settings) {
+			this.settings=Objects.requireNonNull(settings);
 			this.inputName=name;
 			this.c=c;
 			this.useMap=useMap;
@@ -327,7 +502,49 @@ public class FeaturizeNitrosamine {
 			}
 		}
 
+		public String getInputName(){
+			return inputName;
+		}
+
+		public Chemical getChemical(){
+			return c;
+		}
+
+		public FeaturizeSettings getSettings(){
+			return settings;
+		}
+
+		public String getInputSmiles(){
+			return inputSmiles;
+		}
+
+		/**
+		 * The SMILES the structure was parsed from, if it hasn't been changed
+		 * since. This lets salts be recognized from the text.
+		 * @param inputSmiles
+		 */
+		public void setInputSmiles(String inputSmiles){
+			this.inputSmiles=inputSmiles;
+		}
+
+		public NormalizedCache getNormalizedCache(){
+			return normalizedCache;
+		}
+
+		/**
+		 * Cache of prepared structures from earlier runs to use, and to add
+		 * this structure to.
+		 * @param normalizedCache
+		 */
+		public void setNormalizedCache(NormalizedCache normalizedCache){
+			this.normalizedCache=normalizedCache;
+		}
+
 		public static FeatureJob forOneNitrosamine(Chemical c){
+			return forOneNitrosamine(c, FeaturizeSettings.fromGlobalSettings());
+		}
+
+		public static FeatureJob forOneNitrosamine(Chemical c, FeaturizeSettings settings){
 			c.atoms().forEach(a->a.setAtomToAtomMap(0));
 			List<Integer> sites = markAllNitrosamines(c);
 
@@ -339,7 +556,7 @@ public class FeaturizeNitrosamine {
 				System.out.println(chems.size());
 				throw new IllegalArgumentException("Wrong number of nitrosamines for this method. Expected 1.");
 			}
-			FeatureJob fj = new FeatureJob(chems.get(0));
+			FeatureJob fj = new FeatureJob(chems.get(0), settings);
 			fj.addNitrosamine=true;
 			fj.useMap=true;
 
@@ -347,16 +564,260 @@ public class FeaturizeNitrosamine {
 		}
 	}
 
+	/**
+	 * Features of the whole (salt stripped) structure, which are the same for
+	 * every site on it. They are worked out for the first site and reused for
+	 * the rest, along with the ring index.
+	 */
+	public static class MoleculeFeatures{
+		private final Chemical c;
+		private final FeaturizeSettings settings;
+		private final RingIndex rings;
+		private MolGraph graph;
+
+		private List<AtomTest> sites = Collections.emptyList();
+		//each site to the first site symmetric to it
+		private Map<Atom,Atom> symmetricSites;
+		private final Map<Atom,List<FeatureScorePairInstance>> siteFeatures = new HashMap<>();
+
+		private boolean computed=false;
+		private String carboxylType;
+		private String sulfonicAcidType;
+		private String phosphateType;
+
+		public MoleculeFeatures(Chemical c, FeaturizeSettings settings){
+			this(c, settings, new RingIndex(c));
+		}
+
+		public MoleculeFeatures(Chemical c, FeaturizeSettings settings, RingIndex rings){
+			this.c=c;
+			this.settings=Objects.requireNonNull(settings);
+			this.rings=rings;
+		}
+
+		public Chemical getChemical(){
+			return c;
+		}
+
+		public RingIndex getRings(){
+			return rings;
+		}
+
+		/**
+		 * Does the whole structure pass, if it hasn't been done yet. This
+		 * changes the aromaticity of the structure, so it has to come before
+		 * anything on the site that depends on it.
+		 */
+		public void compute(){
+			if(computed){
+				return;
+			}
+			Map<AtomTest,Integer> carbonylAromatic = getGraph().atomTests()
+					.filter(cat->cat.isAromatic())
+					.filter(cat->cat.isDoubleBondedCarbon())
+					.flatMap(at->at.getNeighbors(nat->nat.isOxygen() || nat.isSulfur()))
+					.filter(cat->cat.hasDoubleBond())
+					.filter(cat->cat.getHCount()==0)
+					.collect(Collectors.toMap(at->at,at->at.get().getAtomicNumber()));
+
+			if(carbonylAromatic.size()>0) {
+				carbonylAromatic.keySet().forEach(at->{
+					at.get().setAtomicNumber(6);
+				});
+				c.aromatize();
+			}
+
+			if(carbonylAromatic.size()>0) {
+				carbonylAromatic.forEach((at,s)->{
+					at.get().setAtomicNumber(s);
+					at.get().setImplicitHCount(0);
+				});
+				//			c.aromatize();
+			}
+
+			//nothing changes the structure from here on
+			if(carbonylAromatic.size()>0) {
+				graph = MolGraph.of(c);
+			}
+
+			carboxylType="NO";
+			sulfonicAcidType="NO";
+			phosphateType="NO";
+			for(int i=0;i<graph.getAtomCount();i++){
+				if(graph.isCarboxyl(i)
+						|| (settings.isConsiderChargedCOOAsCOOH() && graph.isCarboxylCharged(i))){
+					carboxylType="YES";
+				}
+				if(graph.isSulfoxyl(i)
+						//TODO: figure out
+						|| graph.isSulfoxylCharged(i)){
+					sulfonicAcidType="YES";
+				}
+				if(graph.isPhosphate(i)){
+					phosphateType="YES";
+				}
+			}
+			computed=true;
+		}
+
+		/**
+		 * Snapshot of the structure as it is now. Before {@link #compute()}
+		 * that's the structure as it was given, after it, the structure site
+		 * features are worked out from.
+		 * @return
+		 */
+		public MolGraph getGraph(){
+			if(graph==null){
+				graph = MolGraph.of(c);
+			}
+			return graph;
+		}
+
+		public String getCarboxylType(){
+			compute();
+			return carboxylType;
+		}
+
+		public String getSulfonicAcidType(){
+			compute();
+			return sulfonicAcidType;
+		}
+
+		public String getPhosphateType(){
+			compute();
+			return phosphateType;
+		}
+
+		/**
+		 * Sets the sites that are going to be featurized, so that symmetric
+		 * ones (like both nitrogens of a piperazine) only get their site
+		 * features worked out once.
+		 * @param sites
+		 */
+		public void setSites(List<AtomTest> sites){
+			this.sites=sites;
+			this.symmetricSites=null;
+		}
+
+		/**
+		 * Site features for the given site, reused from a symmetric site
+		 * that was already done if there is one.
+		 * @param atList
+		 * @return the features, which must not be changed
+		 * @throws Exception
+		 */
+		public List<FeatureScorePairInstance> getSiteFeatures(List<AtomTest> atList) throws Exception{
+			compute();
+			atList = graph.atomTests(atList);
+			Atom first = null;
+			if(atList.size()==1){
+				first = getSymmetricSites().get(atList.get(0).get());
+			}
+			if(first==null){
+				return SITE_FEATURE_CACHE.getFeatures(c, atList, settings, this);
+			}
+			List<FeatureScorePairInstance> features = siteFeatures.get(first);
+			if(features==null){
+				features = SITE_FEATURE_CACHE.getFeatures(c, atList, settings, this);
+				siteFeatures.put(first, features);
+			}
+			return features;
+		}
+
+		private Map<Atom,Atom> getSymmetricSites(){
+			if(symmetricSites!=null){
+				return symmetricSites;
+			}
+			symmetricSites = new HashMap<>();
+			if(sites.size()<2){
+				return symmetricSites;
+			}
+			//the symmetry classes come from the whole structure, and the
+			//ring key keeps sites whose ring is read a different way apart.
+			//Refinement can put sites that aren't symmetric in the same class,
+			//so they also need the same neighborhood, like for the site cache
+			int[] classes = AtomEnvironment.symmetryClasses(rings);
+			Map<String,Atom> firstOfClass = new HashMap<>();
+			for(AtomTest site: graph.atomTests(sites)){
+				int i = rings.indexOf(site.get());
+				if(i<0){
+					continue;
+				}
+				String env = AtomEnvironment.key(rings, site.get(), SiteFeatureCache.RADIUS, c.getAtomCount());
+				if(env==null){
+					continue;
+				}
+				String key = classes[i] + "|" + getSiteRingKey(site, rings) + "|" + env;
+				symmetricSites.put(site.get(), firstOfClass.computeIfAbsent(key, k->site.get()));
+			}
+			return symmetricSites;
+		}
+	}
+
+
 
+	//small salt featurized at startup, so salt stripping is loaded too
+	private static final String WARM_UP_SMILES = "Cl.CNC1CCN(CC1)C(=O)c1ccccc1";
+
+	/**
+	 * Loads the toolkit by featurizing one small salt with no time limit,
+	 * then empties the shared caches again. Call this before the first time
+	 * limited job: the toolkit loads its data (like isotopes) when its
+	 * classes are first used, and a job interrupted while that is going on
+	 * leaves those classes unusable for the rest of the run. It also gets
+	 * the startup cost out of the way of the first real structure.
+	 * @throws IllegalStateException if the structure can't be featurized
+	 */
+	public static void warmUp(){
+		try{
+			fingerprintNitrosamine(new FeatureJob(Chemical.parse(WARM_UP_SMILES)));
+		}catch(Exception e){
+			throw new IllegalStateException("Unable to load the chemistry toolkit", e);
+		}
+		SITE_FEATURE_CACHE.clear();
+		COMPONENT_KEY_CACHE.clear();
+		FRAGMENT_KEY_CACHE.clear();
+	}
+
+	/**
+	 * Same as {@link #fingerprintNitrosamine(FeatureJob)}, but stops once
+	 * timeoutMillis have passed, returning a single timed out
+	 * {@link FeatureResponse} instead. A timeout of 0 or less means no limit.
+	 * The job runs on the calling thread, see {@link TimeLimiter}, and
+	 * {@link #warmUp()} has to have been called first.
+	 * 
+	 * @param fj
+	 * @param timeoutMillis
+	 * @return
+	 * @throws Exception
+	 */
+	public static List<FeatureResponse> fingerprintNitrosamine(FeatureJob fj, long timeoutMillis) throws Exception{
+		try{
+			return TimeLimiter.call(()->fingerprintNitrosamine(fj), timeoutMillis);
+		}catch(TimeoutException e){
+			System.err.println("Featurizing \"" + fj.inputName + "\" took longer than " + timeoutMillis + "ms, skipping");
+			List<FeatureResponse> resp = new ArrayList<>();
+			resp.add(FeatureResponse.timedOut(fj));
+			return resp;
+		}
+	}
 
 	public static List<FeatureResponse> fingerprintNitrosamine(FeatureJob fj) throws Exception{
 
 		Chemical c = fj.c.copy();
+		NormalizedCache norm = fj.normalizedCache;
+		String normKey = null;
+		NormalizedCache.Entry normEntry = null;
+		if(norm!=null){
+			normKey = NormalizedCache.key(c);
+			normEntry = norm.get(normKey);
+		}
 		ChemUtil.simpleCleanup(c);
+		boolean hadCoordinates = c.has2DCoordinates();
 
 
 		//This shouldn't really be required
-		if(!c.has2DCoordinates()) {
+		if(!hadCoordinates && !(normEntry!=null && normEntry.applyCoordinates(c))) {
 			try{
 				c.generateCoordinates();
 			}catch(Exception e){
@@ -390,12 +851,22 @@ public class FeaturizeNitrosamine {
 				}
 			}
 		}
-		Tuple<SaltInfo,Chemical> retSalt= saltStrip(c,true);
+		List<String> componentKeys = null;
+		if(norm!=null){
+			componentKeys = (normEntry!=null)? new ArrayList<>(normEntry.getComponentKeys()) : new ArrayList<>();
+		}
+		Tuple<SaltInfo,Chemical> retSalt= saltStrip(c,true,fj.inputSmiles,componentKeys);
+		if(norm!=null && normEntry==null){
+			norm.put(normKey, new NormalizedCache.Entry(hadCoordinates?null:NormalizedCache.Entry.coordinatesOf(c2), componentKeys));
+		}
 		c=retSalt.v();
 		SaltInfo sinfo = retSalt.k();
 		c.aromatize();
 
 		Chemical cFin = c;
+		//shared by the type checks and every site below
+		RingIndex rings = new RingIndex(cFin);
+		MoleculeFeatures molecule = new MoleculeFeatures(cFin, fj.settings, rings);
 
 
 
@@ -403,7 +874,7 @@ public class FeaturizeNitrosamine {
 		boolean got=false;
 		String type = "NOT SECONDARY AMINE";
 
-		List<AtomTest> atListDiMethyl = AtomTest.stream(c)
+		List<AtomTest> atListDiMethyl = molecule.getGraph().atomTests()
 				.filter(at->at.isNitrogen())
 				.filter(at->at.isNeutral())
 				.filter(at->at.getNeighbors(nn->nn.isMethyl()).count()==2)
@@ -416,6 +887,7 @@ public class FeaturizeNitrosamine {
 				.collect(Collectors.toList());
 
 		if(atListDiMethyl.size()>0){
+			molecule.setSites(atListDiMethyl);
 
 			type="D. Dimethyl-Amines";
 			if(atListDiMethyl.size()>1){
@@ -432,7 +904,7 @@ public class FeaturizeNitrosamine {
 					int count=(fj.inputForceNumber==0)?i:fj.inputForceNumber;
 
 					featureResponses.add(
-							calculateFeatures(c2, fj.inputName,count, c, type, sinfo,  Arrays.asList(at), fj.addNitrosamine)
+							calculateFeatures(c2, fj.inputName,count, c, type, sinfo,  Arrays.asList(at), fj.addNitrosamine, fj.settings, molecule)
 							);
 				}
 				c2.getAtom(aNum).setAtomToAtomMap(0);
@@ -442,22 +914,24 @@ public class FeaturizeNitrosamine {
 			type = "NOT SECONDARY AMINE";
 			got=true;
 		}
-		CachedSupplier<Map<Bond,Integer>> minRings = CachedSupplier.of(()->ChemUtil.getSmallestRingSizeForEachBond(cFin, 10)
-				.entrySet()
-				.stream()
-				.map(Tuple::of)
-				.map(Tuple.kmap(ii->cFin.getBond(ii)))
-				.collect(Tuple.toMap()));
-
-		List<AtomTest> atList = AtomTest.stream(c)
+		//featurizing a dimethyl site above does the whole structure pass,
+		//which can change aromaticity, so the rest of the typing is done on
+		//the structure as it is now
+		MolGraph typing = molecule.getGraph();
+		List<AtomTest> atList = typing.atomTests()
 				.filter(at->at.isNitrogen())
 				.filter(at->{
 					if(!at.hasAromaticBond()) {
 						return true;
 					}else {
 						BondTest bt1= at.getBonds().filter(bb->bb.isAromatic()).findFirst().orElse(null);
-
-						Integer iRing = minRings.get().get(bt1.get());
+						if(bt1==null) {
+							return true;
+						}
+						Integer iRing = rings.getSmallestRingSize(bt1.get());
+						if(iRing==null) {
+							return true;
+						}
 
 						Set<BondTest> keepSet = new HashSet<>();
 
@@ -472,7 +946,7 @@ public class FeaturizeNitrosamine {
 								bt2.getNeighborBonds()
 								.filter(bb->!keepSet.contains(bb))
 								.filter(bb->bb.isAromatic())
-								.filter(bb->iRing.equals(minRings.get().get(bb.get())))
+								.filter(bb->iRing.equals(rings.getSmallestRingSize(bb.get())))
 								.forEach(bb->{
 									cursorBonds2ptr.add(bb);
 								}) ;													
@@ -514,7 +988,7 @@ public class FeaturizeNitrosamine {
 		}else if(atList.size()>1){
 			type = "A. Multiple Secondary Amine";
 		}else{
-			atList = AtomTest.stream(c)
+			atList = typing.atomTests()
 					.filter(at->at.isNitrogen())
 					.filter(at->at.getHCount()==1)
 					.filter(at->at.getNeighbors(nn->nn.isCarbonyl()).count()==0)
@@ -526,7 +1000,7 @@ public class FeaturizeNitrosamine {
 			}else if(atList.size()>1){
 				type = "B. Multiple Aromatic Secondary Amine";
 			}else{
-				atList = AtomTest.stream(c)
+				atList = typing.atomTests()
 						.filter(at->at.isNitrogen())
 						.filter(at->at.getHCount()==1)
 						.filter(at->at.getNeighbors(nn->nn.isCarbonyl()).count()==0)
@@ -542,6 +1016,7 @@ public class FeaturizeNitrosamine {
 		System.out.printf("computed type: %s\n", type);
 
 		if(atList.size()>0 || !got){
+			molecule.setSites(atList);
 			int i=1;
 			for(AtomTest at: atList){
 				int aNum=at.get().getAtomToAtomMap().orElse(0)-1;
@@ -551,7 +1026,7 @@ public class FeaturizeNitrosamine {
 					fj.cons.accept(Tuple.of(type,c2));
 					int count=(fj.inputForceNumber==0)?i:fj.inputForceNumber;
 					featureResponses.add(
-							calculateFeatures(c2, fj.inputName, count, c, type, sinfo,  Arrays.asList(at), fj.addNitrosamine)
+							calculateFeatures(c2, fj.inputName, count, c, type, sinfo,  Arrays.asList(at), fj.addNitrosamine, fj.settings, molecule)
 							);
 				}
 				c2.getAtom(aNum).setAtomToAtomMap(0);
@@ -635,12 +1110,14 @@ public class FeaturizeNitrosamine {
 			int amap = caN.getAtomToAtomMap().orElse(0);
 			if(amap>0){
 				nCenter=caN;
-				Set<AtomTest> nats=AtomTest.of(nCenter)
+				//keep neighbor order here, picking from a hash set made the
+				//removed methyl (and so the exported SMILES) vary between runs
+				List<AtomTest> nats=AtomTest.of(nCenter)
 						.getNeighbors()
 						.filter(cca->cca.isMethyl())
-						.collect(Collectors.toSet());
+						.collect(Collectors.toList());
 				if(nats.size()==2){
-					Atom chat=nats.iterator().next().get();
+					Atom chat=nats.get(0).get();
 
 					ct.removeAtom(chat);
 				}
@@ -705,20 +1182,175 @@ public class FeaturizeNitrosamine {
 
 	}
 
+	//site features by nitrogen environment, shared by every thread
+	public static final SiteFeatureCache SITE_FEATURE_CACHE = new SiteFeatureCache(10000);
+
+	//alpha hydrogen counts on each side -> score
+	private static final Map<String,String> ALPHA_HYDROGEN_SCORES = Arrays.stream(("0,0	5\r\n" + 
+			"0,1	4\r\n" + 
+			"0,2	3\r\n" + 
+			"0,3	2\r\n" + 
+			"1,1	4\r\n" + 
+			"1,2	3\r\n" + 
+			"1,3	3\r\n" + 
+			"2,2	1\r\n" + 
+			"3,3	1\r\n" + 
+			"2,3	1\r\n").split("\n")).map(ss->ss.trim().split("\t")).collect(Collectors.toMap(k->k[0], v->v[1]));
+
 	public static FeatureResponse calculateFeatures(Chemical cc, String name, int count,  Chemical c, String type, SaltInfo sinfo, 
 			List<AtomTest> atList,
 			boolean addNitrosamine) throws Exception{
+		return calculateFeatures(cc, name, count, c, type, sinfo, atList, addNitrosamine, FeaturizeSettings.fromGlobalSettings());
+	}
+
+	public static FeatureResponse calculateFeatures(Chemical cc, String name, int count,  Chemical c, String type, SaltInfo sinfo, 
+			List<AtomTest> atList,
+			boolean addNitrosamine, FeaturizeSettings settings) throws Exception{
+		return calculateFeatures(cc, name, count, c, type, sinfo, atList, addNitrosamine, settings, new MoleculeFeatures(c, settings));
+	}
+
+	/**
+	 * @param molecule whole structure features of c, shared by every site of the same structure
+	 */
+	public static FeatureResponse calculateFeatures(Chemical cc, String name, int count,  Chemical c, String type, SaltInfo sinfo, 
+			List<AtomTest> atList,
+			boolean addNitrosamine, FeaturizeSettings settings, MoleculeFeatures molecule) throws Exception{
+		TimeLimiter.checkInterrupted();
 		FeatureResponse resp = new FeatureResponse();
 		Chemical ct=cc.copy();
 
+		List<FeatureScorePairInstance> features = molecule.getSiteFeatures(atList);
+
+		if(addNitrosamine){
+			AtomTest at1=atList.get(0);
+			int amap1=at1.get().getAtomToAtomMap().orElse(0);
+
+			ct.atoms().forEach(at->{
+				if(at.getAtomToAtomMap().orElse(-1)!=amap1){
+					at.setAtomToAtomMap(0);
+				}
+			});
+			nitrosate(ct);
+		}
+
+		resp.name=name;
+		resp.chemical=ct;
+		resp.count=count;
+		resp.type=type;
+		resp.saltInfo=sinfo;
+		features.forEach(resp::addFeatureAndScore);
+		return resp;
+	}
+
+	//first bond from the nitrogen to a neighbor in a ring
+	private static Bond getFirstRingBond(AtomTest oat){
+		return oat.getNeighbors(nn->nn.isInRing())
+				.map(att->att.getBondTo(oat).get())
+				.map(at->at.get())
+				.findFirst()
+				.get();
+	}
+
+	/**
+	 * Text for the smallest ring through the first ring bond of the nitrogen,
+	 * read round from the nitrogen, like "-N-CP-CP-CP-CP-" for pyrrolidine.
+	 * Each atom is written with the bond to it, and sp3 carbons get a "P".
+	 * @param oat
+	 * @param rings
+	 * @return the text, or null if the nitrogen isn't in a ring
+	 */
+	static String getRingText(AtomTest oat, RingIndex rings){
+		if(!oat.isInRing()){
+			return null;
+		}
+		Bond ringBond = getFirstRingBond(oat);
+
+		//ring from the nitrogen round to its neighbor, without the bond between them
+		List<AtomTest> list = rings.getRingPath(ringBond, oat.get()).stream()
+				.map(AtomTest::of)
+				.collect(Collectors.toList());
+		//the nitrogen itself is written with its first other bond
+		String ringTxt=oat.getBonds()
+				.filter(b->!b.get().equals(ringBond))
+				.findFirst()
+				.map(b->b.getType())
+				.orElse("?") + oat.getAtomSymbol()+(oat.isSp3Carbon()?"P":"");
+		for(int ri=1;ri<list.size();ri++){
+			AtomTest nat=list.get(ri);
+			String btype=nat.getBondTo(list.get(ri-1)).map(b->b.getType()).orElse("?");
+			ringTxt+=btype+ nat.getAtomSymbol()+(nat.isSp3Carbon()?"P":"");
+		}
+		return ringTxt+BondTest.of(ringBond).getType();
+	}
+
+	/**
+	 * The ring information site features use that isn't in the
+	 * neighborhood of the nitrogen: the smallest ring sizes of its bonds and
+	 * its ring text.
+	 * @param site
+	 * @param rings
+	 * @return the key, or an empty string if the nitrogen isn't in a ring
+	 */
+	static String getSiteRingKey(AtomTest site, RingIndex rings){
+		if(!site.isInRing()){
+			return "";
+		}
+		StringBuilder key = new StringBuilder();
+		site.getBonds().forEach(bt->key.append(rings.getSmallestRingSize(bt.get())).append(','));
+		return key.append(getRingText(site, rings)).toString();
+	}
+
+	/**
+	 * Whether there's a chain going out from one carbon of the nitrogen, not
+	 * through the nitrogen or its other carbon, that is 5 atoms long, or 4
+	 * atoms long with its last atom bonded to the last atom of another
+	 * such chain. Chains with hydrogens don't count.
+	 * @param search
+	 * @param start the carbon to start from
+	 * @param other the other carbon of the nitrogen
+	 * @param nitrogen
+	 * @return
+	 */
+	private static boolean hasChain5(GraphSearch search, int start, int other, int nitrogen){
+		MolGraph graph = search.getGraph();
+		search.reset().exclude(other).exclude(nitrogen);
+		int found = search.search(start, 4, (s,a)->{
+			if(s.getDepth(a)<3 || s.pathHasHydrogen(a)){
+				return true;
+			}
+			if(s.getDepth(a)>=4){
+				return false;
+			}
+			for(int k=graph.firstNeighbor(a);k<graph.endNeighbor(a);k++){
+				int nb=graph.neighborAtom(k);
+				if(s.isReached(nb) && s.getDepth(nb)==3 && !s.pathHasHydrogen(nb)){
+					return false;
+				}
+			}
+			return true;
+		});
+		return found>=0;
+	}
+
+	/**
+	 * Features that depend on the site, which is a single nitrogen for
+	 * everything but the alpha hydrogen counts. These only look at the
+	 * neighborhood of the nitrogen, see {@link SiteFeatureCache}.
+	 * @param c
+	 * @param atList
+	 * @param settings
+	 * @param molecule must already be computed
+	 * @return
+	 * @throws Exception
+	 */
+	static List<FeatureScorePairInstance> calculateSiteFeatures(Chemical c, List<AtomTest> atList, FeaturizeSettings settings, MoleculeFeatures molecule) throws Exception{
+		RingIndex rings = molecule.getRings();
+
 		String hcounts= "N/A";
 		int hcountsTOT= 0;
 		String ringType= "N/A";
 		String ring5_or_6= "N/A";
 		String ring7= "N/A";
-		String carboxylType= "N/A";
-		String sulfonicAcidType= "N/A";
-		String phosphateType= "N/A";
 		String hasEthane= "N/A";
 		String hasBenzyl= "N/A";
 		int hasBetaHydroxylCount= 0 ;
@@ -747,17 +1379,6 @@ public class FeaturizeNitrosamine {
 		String betaEsterEWG= "N/A";
 		String betaImineEWG= "N/A";
 
-		Map<String,String> lookup = Arrays.stream(("0,0	5\r\n" + 
-				"0,1	4\r\n" + 
-				"0,2	3\r\n" + 
-				"0,3	2\r\n" + 
-				"1,1	4\r\n" + 
-				"1,2	3\r\n" + 
-				"1,3	3\r\n" + 
-				"2,2	1\r\n" + 
-				"3,3	1\r\n" + 
-				"2,3	1\r\n").split("\n")).map(ss->ss.trim().split("\t")).collect(Collectors.toMap(k->k[0], v->v[1]));
-
 		// N-[CH2]-C(=[O,N,S])-([H],[C],[F],[Cl],[Br],[I],[OC],[NH2],[NHC],[NC2])
 		long ewg_betaCarbonylDeriv = 0;
 
@@ -790,36 +1411,6 @@ public class FeaturizeNitrosamine {
 
 		String[] excludeRing= new String[]{"N/A"};
 
-		CachedSupplier<Map<Bond,Integer>> minRings = CachedSupplier.of(()->ChemUtil.getSmallestRingSizeForEachBond(c, 10)
-				.entrySet()
-				.stream()
-				.map(Tuple::of)
-				.map(Tuple.kmap(ii->c.getBond(ii)))
-				.collect(Tuple.toMap()));
-
-		Map<AtomTest,Integer> carbonylAromatic = AtomTest.stream(c)
-				.filter(cat->cat.isAromatic())
-				.filter(cat->cat.isDoubleBondedCarbon())
-				.flatMap(at->at.getNeighbors(nat->nat.isOxygen() || nat.isSulfur()))
-				.filter(cat->cat.hasDoubleBond())
-				.filter(cat->cat.getHCount()==0)
-				.collect(Collectors.toMap(at->at,at->at.get().getAtomicNumber()));
-
-		if(carbonylAromatic.size()>0) {
-			carbonylAromatic.keySet().forEach(at->{
-				at.get().setAtomicNumber(6);
-			});
-			c.aromatize();
-		}
-
-		if(carbonylAromatic.size()>0) {
-			carbonylAromatic.forEach((at,s)->{
-				at.get().setAtomicNumber(s);
-				at.get().setImplicitHCount(0);
-			});
-			//			c.aromatize();
-		}
-
 
 
 
@@ -835,7 +1426,7 @@ public class FeaturizeNitrosamine {
 
 			String keyLookup= Arrays.stream(hcounts.split(",")).limit(2).collect(Collectors.joining(","));
 
-			hcountsTOT = Integer.parseInt(lookup.get(keyLookup));
+			hcountsTOT = Integer.parseInt(ALPHA_HYDROGEN_SCORES.get(keyLookup));
 
 
 
@@ -845,7 +1436,7 @@ public class FeaturizeNitrosamine {
 					.filter(nn->{
 						int minRingSize = nn.getBonds()
 
-								.map(bt->minRings.get().get(bt.get()))
+								.map(bt->rings.getSmallestRingSize(bt.get()))
 								.filter(Objects::nonNull)
 								.min(Comparator.naturalOrder())
 								.orElse(999);
@@ -873,36 +1464,7 @@ public class FeaturizeNitrosamine {
 			}
 		}
 
-		if(AtomTest.stream(c)
-				.filter(at->at.isCarboxyl()
-						|| (GLOBAL_SETTINGS.CONSIDER_CHARGED_COO_AS_COOH && at.isCarboxylCharged())
-						)
-				.count()>0){
-			carboxylType="YES";
-		}else{
-			carboxylType="NO";
-		}
-
-		if(AtomTest.stream(c)
-				.filter(at->at.isSulfoxyl()
-						//TODO: figure out
-						||at.isSulfoxylCharged()
-						)
-				.count()>0){
-			sulfonicAcidType="YES";
-		}else{
-			sulfonicAcidType="NO";
-		}
-		
-		
-
-		if(AtomTest.stream(c)
-				.filter(at->at.isPhosphate())
-				.count()>0){
-			phosphateType="YES";
-		}else{
-			phosphateType="NO";
-		}
+		String carboxylType=molecule.getCarboxylType();
 
 		if(atList.size()==1){
 			hasEthane=atList.stream()
@@ -1010,10 +1572,10 @@ public class FeaturizeNitrosamine {
 			}else{
 				if(!excludeRing[0].equals("N/A")){
 					int minRingSize = Integer.parseInt(excludeRing[0].split(":")[1]);
-					if(GLOBAL_SETTINGS.MAX_RING_SIZE_BEFORE_ACYCLIC_FOR_CHAIN5<=0){
+					if(settings.getMaxRingSizeBeforeAcyclicForChain5()<=0){
 						isRing=true;
 					}else{
-						if(minRingSize>GLOBAL_SETTINGS.MAX_RING_SIZE_BEFORE_ACYCLIC_FOR_CHAIN5){
+						if(minRingSize>settings.getMaxRingSizeBeforeAcyclicForChain5()){
 							isRing=false;
 						}else{
 							isRing=true;
@@ -1029,73 +1591,14 @@ public class FeaturizeNitrosamine {
 					.filter(att->{
 						List<AtomTest> atoms = att.getNeighbors().filter(n->n.isCarbon()).collect(Collectors.toList());
 						if(atoms.size()==2){
-							AtomTest n1=atoms.get(0);
-							AtomTest n2=atoms.get(1);
-
-							Set<AtomTest> set1= StreamUtil.with(Stream.of(n2)).and(att).stream().collect(Collectors.toSet());
-							Set<AtomTest> set2= StreamUtil.with(Stream.of(n1)).and(att).stream().collect(Collectors.toSet());
-
-							LinkedList<AtomTest> path1 = new LinkedList<>();
-							Set<AtomTest> chain41 = new HashSet<AtomTest>();
-							LinkedList<AtomTest> path2 = new LinkedList<>();
-							Set<AtomTest> chain42 = new HashSet<AtomTest>();
-
-							n1.getBreadthFirstPathsUntil((ll)->{
-								if(ll.size()>=5){
-									if(ll.stream().filter(aaa->aaa.isHydrogen()).findAny().isPresent()){
-										return true;
-									}else{
-										path1.addAll(ll);
-										return false;
-									}
-								}else{
-									if(ll.size()==4){
-										if(!ll.stream().filter(aaa->aaa.isHydrogen()).findAny().isPresent()){
-											AtomTest head = ll.peek();
-											chain41.add(head);
-											if(chain41.size()>1){
-												if(head.getNeighbors(att2n->chain41.contains(att2n)).count()>0){
-													path1.addAll(ll);
-												}
-											}
-										}
-
-									}
-								}
-								return true;
-							}, set1);
-
-							n2.getBreadthFirstPathsUntil((ll)->{
-								if(ll.size()>=5){
-									if(ll.stream().filter(aaa->aaa.isHydrogen()).findAny().isPresent()){
-										return true;
-									}else{
-										path2.addAll(ll);
-										return false;
-									}
-								}else{
-									if(ll.size()==4){
-										if(!ll.stream().filter(aaa->aaa.isHydrogen()).findAny().isPresent()){
-											AtomTest head = ll.peek();
-											chain42.add(head);
-											if(chain42.size()>1){
-												if(head.getNeighbors(att2n->chain42.contains(att2n)).count()>0){
-													path2.addAll(ll);
-												}
-											}
-										}
-
-									}
-								}
-								return true;
-							}, set2);
-
-							if(!path1.isEmpty() && !path2.isEmpty()){
-								return true;
-							}
-
+							MolGraph graph = molecule.getGraph();
+							GraphSearch search = new GraphSearch(graph);
+							int n = graph.indexOf(att.get());
+							int n1 = graph.indexOf(atoms.get(0).get());
+							int n2 = graph.indexOf(atoms.get(1).get());
+							return hasChain5(search, n1, n2, n) && hasChain5(search, n2, n1, n);
 						}
-						return false;						
+						return false;
 					})
 					.findAny()
 					.map(oo->"YES")
@@ -1206,8 +1709,7 @@ public class FeaturizeNitrosamine {
 					.flatMap(at-> at.getNeighbors(att->att.isCarbon())) //
 					.filter(cat->cat.getHCount()<2)
 					.filter(cat->cat.getNeighbors(att->!att.isHydrogen()).count()==2)
-					.flatMap(at-> at.getBonds().filter(bb->bb.isDoubleBond()||bb.isTripleBond()).map(bb->bb.get().getOtherAtom(at.get())))
-					.map(ca->AtomTest.of(ca))
+					.flatMap(at-> at.getBonds().filter(bb->bb.isDoubleBond()||bb.isTripleBond()).map(bb->bb.getOtherAtom(at)))
 					.filter(cat->cat.getNeighbors(att->!att.isHydrogen()).count()==2)
 					.filter(cat->cat.hasNeighbor(att->att.isAromaticCarbon()))					
 					.count();
@@ -1219,8 +1721,7 @@ public class FeaturizeNitrosamine {
 					.flatMap(at-> at.getNeighbors(att->att.isCarbon())) //
 					.filter(cat->cat.getHCount()<2)
 					.filter(cat->cat.getNeighbors(att->!att.isHydrogen()).count()==2)
-					.flatMap(at-> at.getBonds().filter(bb->bb.isDoubleBond()||bb.isTripleBond()).map(bb->bb.get().getOtherAtom(at.get())))
-					.map(ca->AtomTest.of(ca))
+					.flatMap(at-> at.getBonds().filter(bb->bb.isDoubleBond()||bb.isTripleBond()).map(bb->bb.getOtherAtom(at)))
 					.filter(cat->cat.getNeighbors(att->!att.isHydrogen()).count()==2)
 					.filter(cat->cat.hasNeighbor(cat2->cat2.hasNeighbor(att->att.isDoubleBondToSorN() || att.isDoubleBondedOxygen())))					
 					.count();
@@ -1231,51 +1732,15 @@ public class FeaturizeNitrosamine {
 					.flatMap(at-> at.getNeighbors(att->att.isCarbon())) //
 					.filter(cat->cat.getHCount()<2)
 					.filter(cat->cat.getNeighbors(att->!att.isHydrogen()).count()==2)
-					.flatMap(at-> at.getBonds().filter(bb->bb.isDoubleBond()||bb.isTripleBond()).map(bb->bb.get().getOtherAtom(at.get())))
-					.map(ca->AtomTest.of(ca))
+					.flatMap(at-> at.getBonds().filter(bb->bb.isDoubleBond()||bb.isTripleBond()).map(bb->bb.getOtherAtom(at)))
 					.filter(cat->cat.getNeighbors(att->!att.isHydrogen()).count()==2)
 					.filter(cat->cat.hasNeighbor(att->att.isCyanide()))					
 					.count();
 
 
 			if(oat.isInRing()){
-
-				List<Bond> cbonds=oat.getNeighbors(nn->nn.isInRing())
-						.map(att->att.getBondTo(oat).get())
-						.map(at->at.get())
-						.collect(Collectors.toList());
-				Bond toRemove = cbonds.get(0);
-				Atom at2 = toRemove.getOtherAtom(oat.get());
-
-				int oHimplicit1= at2.getImplicitHCount();
-				int oHimplicit2= oat.get().getImplicitHCount();
-
-
-				c.removeBond(toRemove);
-				//TODO: not ideal, molwitch should do this automatically 
-				at2.setImplicitHCount(oHimplicit1+1);
-				oat.get().setImplicitHCount(oHimplicit2+1);
-
-
-				AtomTest test1=AtomTest.of(at2);
-				AtomTest test2=AtomTest.of(oat.get());
-
-				LinkedList<AtomTest> list  =test1.getFirstPathTo(test2);
-				AtomTest[] ogAtom = new AtomTest[]{test2};
-				String ringTxt=list.stream()
-						.map(nat->{
-							String btype=nat.getBondTo(ogAtom[0]).map(b->b.getType()).orElse("?");
-
-							String ret=btype+ nat.getAtomSymbol()+(nat.isSp3Carbon()?"P":"");
-							ogAtom[0]=nat;
-							return ret;
-						})
-						.collect(Collectors.joining(""));
-
-				c.addBond(toRemove);
-				at2.setImplicitHCount(oHimplicit1);
-				oat.get().setImplicitHCount(oHimplicit2);
-				ringTxt=ringTxt+BondTest.of(toRemove).getType();
+				String ringTxt=getRingText(oat, rings);
+				int ringAtoms=rings.getRingPath(getFirstRingBond(oat), oat.get()).size();
 
 				if(ringTxt.equals("-N-CP-CP-CP-CP-")){
 					isPyrrolidine="YES";
@@ -1330,7 +1795,7 @@ public class FeaturizeNitrosamine {
 					}
 				}
 
-				if(ringTxt.contains("S") && list.size()==6){
+				if(ringTxt.contains("S") && ringAtoms==6){
 					ringS6="YES";
 				}
 			}			
@@ -1349,19 +1814,6 @@ public class FeaturizeNitrosamine {
 		}
 
 
-		if(addNitrosamine){
-			AtomTest at1=atList.get(0);
-			int amap1=at1.get().getAtomToAtomMap().orElse(0);
-
-			ct.atoms().forEach(at->{
-				if(at.getAtomToAtomMap().orElse(-1)!=amap1){
-					at.setAtomToAtomMap(0);
-				}
-			});
-			nitrosate(ct);
-		}
-
-
 		long ewgCount = 
 				ewg_betaCarbonylDeriv +
 				ewg_alphaHalogen +
@@ -1377,45 +1829,39 @@ public class FeaturizeNitrosamine {
 
 
 
-		resp.name=name;
-		resp.chemical=ct;
-		resp.count=count;
-		resp.type=type;
-		resp.saltInfo=sinfo;
-
-
-		resp.addFeatureAndScore(FeaturePairRegistry.ALPHA_HYDROGENS.getInstance(hcounts, hcountsTOT));
+		List<FeatureScorePairInstance> features = new ArrayList<>();
+		features.add(FeaturePairRegistry.ALPHA_HYDROGENS.getInstance(hcounts, hcountsTOT));
 
-		resp.addFeatureAndScore(FeaturePairRegistry.TERT_ALPHA_HYDROGENS.getInstanceYesNo(hasAlphaSP3NoHydrogens, 1));
-		resp.addFeatureAndScore(FeaturePairRegistry.COOH.getInstanceYesNo(carboxylType, 3));
-		resp.addFeatureAndScore(FeaturePairRegistry.PYRROLIDINE.getInstanceYesNo(isPyrrolidine, 3));
+		features.add(FeaturePairRegistry.TERT_ALPHA_HYDROGENS.getInstanceYesNo(hasAlphaSP3NoHydrogens, 1));
+		features.add(FeaturePairRegistry.COOH.getInstanceYesNo(carboxylType, 3));
+		features.add(FeaturePairRegistry.PYRROLIDINE.getInstanceYesNo(isPyrrolidine, 3));
 
-		resp.addFeatureAndScore(FeaturePairRegistry.S_IN6_RING.getInstanceYesNo(ringS6, 3));
+		features.add(FeaturePairRegistry.S_IN6_RING.getInstanceYesNo(ringS6, 3));
 
 
 		//TODO
-		resp.addFeatureAndScore(FeaturePairRegistry.IN5_OR_6_RING.getInstanceYesNo(ring5_or_6, 2));
+		features.add(FeaturePairRegistry.IN5_OR_6_RING.getInstanceYesNo(ring5_or_6, 2));
 
-		resp.addFeatureAndScore(FeaturePairRegistry.MORPHOLINE.getInstanceYesNo(isMorpholine, 1));
-		resp.addFeatureAndScore(FeaturePairRegistry.IN7_RING.getInstanceYesNo(ring7, 1));
+		features.add(FeaturePairRegistry.MORPHOLINE.getInstanceYesNo(isMorpholine, 1));
+		features.add(FeaturePairRegistry.IN7_RING.getInstanceYesNo(ring7, 1));
 
-		resp.addFeatureAndScore(FeaturePairRegistry.CHAIN5_BOTH.getInstanceYesNo(chain5, 1));
+		features.add(FeaturePairRegistry.CHAIN5_BOTH.getInstanceYesNo(chain5, 1));
 
-		resp.addFeatureAndScore(FeaturePairRegistry.EWG_ONE_SIDE.getInstanceYesNo(((ewgCount==1)?"YES":"NO"), 1));
-		resp.addFeatureAndScore(FeaturePairRegistry.EWG_BOTH_SIDES.getInstanceYesNo(((ewgCount>1)?"YES":"NO"), 2));
+		features.add(FeaturePairRegistry.EWG_ONE_SIDE.getInstanceYesNo(((ewgCount==1)?"YES":"NO"), 1));
+		features.add(FeaturePairRegistry.EWG_BOTH_SIDES.getInstanceYesNo(((ewgCount>1)?"YES":"NO"), 2));
 
-		resp.addFeatureAndScore(FeaturePairRegistry.BETA_HYDROXYL_ONE_SIDE.getInstanceYesNo(((hasBetaHydroxylCount==1)?"YES":"NO"), 1));
-		resp.addFeatureAndScore(FeaturePairRegistry.BETA_HYDROXYL_BOTH_SIDES.getInstanceYesNo(((hasBetaHydroxylCount>1)?"YES":"NO"), 2));
+		features.add(FeaturePairRegistry.BETA_HYDROXYL_ONE_SIDE.getInstanceYesNo(((hasBetaHydroxylCount==1)?"YES":"NO"), 1));
+		features.add(FeaturePairRegistry.BETA_HYDROXYL_BOTH_SIDES.getInstanceYesNo(((hasBetaHydroxylCount>1)?"YES":"NO"), 2));
 
-		resp.addFeatureAndScore(FeaturePairRegistry.ARYL_ALPHA.getInstanceYesNo(hasBenzyl, -1));
-		resp.addFeatureAndScore(FeaturePairRegistry.METHYL_BETA.getInstanceYesNo(((methylCount>0)?"YES":"NO"), -1));
+		features.add(FeaturePairRegistry.ARYL_ALPHA.getInstanceYesNo(hasBenzyl, -1));
+		features.add(FeaturePairRegistry.METHYL_BETA.getInstanceYesNo(((methylCount>0)?"YES":"NO"), -1));
 
 
-		if(GLOBAL_SETTINGS.DO_EXTENDED_FEATURES_TOO){
-			resp.addFeatureAndScore(FeaturePairRegistry.PIPERAZINE.getInstanceYesNo(isPiperazine, 0));
-			resp.addFeatureAndScore(FeaturePairRegistry.ALLYL_GROUP.getInstanceYesNo(betaDoubleBondEWG, 0));
+		if(settings.isDoExtendedFeaturesToo()){
+			features.add(FeaturePairRegistry.PIPERAZINE.getInstanceYesNo(isPiperazine, 0));
+			features.add(FeaturePairRegistry.ALLYL_GROUP.getInstanceYesNo(betaDoubleBondEWG, 0));
 		}
-		return resp;
+		return features;
 	}
 
 
@@ -1441,6 +1887,19 @@ public class FeaturizeNitrosamine {
 
 		Option verboseOutput  = new Option("v", "verbose-output", false, "add extra verbose columns in export");
 
+		Option threads  = new Option("t", "threads", true, "number of worker threads used to featurize input lines (default 1, 0 uses all available processors). Output order is always preserved");
+		Option parseThreads  = new Option("pt", "parse-threads", true, "number of threads parsing input lines when running with more than one featurize thread (default 1 per 4 featurize threads)");
+		Option serializeThreads  = new Option("st", "serialize-threads", true, "number of threads formatting output rows when running with more than one featurize thread (default 1 per 4 featurize threads)");
+		Option timeout  = new Option("to", "timeout", true, "maximum number of seconds to spend featurizing one structure, structures taking longer are written with a TIMEOUT potency category (default no limit)");
+		Option queueSize  = new Option("qs", "queue-size", true, "capacity of each queue between pipeline stages when running with more than one featurize thread (default 4 per featurize thread)");
+
+		Option daemon  = new Option("d", "daemon", false, "keep running and answer request lines (same format as the input file) from std input, writing the output rows for each followed by an empty line");
+		Option daemonPort  = new Option("dp", "daemon-port", true, "like daemon, but answer requests from connections to this TCP port on the loopback address instead of std input");
+		Option cacheFile  = new Option("c", "cache-file", true, "file of cached results from earlier runs, input lines found there are not featurized again, and new results are added to it");
+		Option normalizedCache  = new Option("nc", "normalized-cache", false, "keep the prepared input structures (coordinates and salt components) in a binary file beside the input file, named like it with .norm added, so later runs over the same input with any options skip preparing them again");
+		Option dedupStructures  = new Option("ds", "dedup-structures", false, "featurize each distinct input structure once, lines with the same structure column and NNO instance as an earlier line get that line's rows with their own name (remembers the last " + StructureDedup.DEFAULT_MAX_SIZE + " structures)");
+		Option httpPort  = new Option("hp", "http-port", true, "run an HTTP server on this port of the loopback address, with GET /featurize?smiles=... and POST /featurize/batch (input file lines) endpoints. Uses -t worker threads (default all available processors)");
+
 		options.addOption(removeNitrosamines);
 		options.addOption(addNitrosamines);
 		options.addOption(mappedSites);
@@ -1451,6 +1910,17 @@ public class FeaturizeNitrosamine {
 		options.addOption(addHeaders);
 		options.addOption(noHeaders);
 		options.addOption(verboseOutput);
+		options.addOption(threads);
+		options.addOption(parseThreads);
+		options.addOption(serializeThreads);
+		options.addOption(queueSize);
+		options.addOption(timeout);
+		options.addOption(daemon);
+		options.addOption(daemonPort);
+		options.addOption(httpPort);
+		options.addOption(cacheFile);
+		options.addOption(dedupStructures);
+		options.addOption(normalizedCache);
 		
 
 		options.addOption(outputFile);
@@ -1486,13 +1956,112 @@ public class FeaturizeNitrosamine {
 		popt.stdOutput = cmd.hasOption("os");
 		
 		popt.verboseOutput = cmd.hasOption("v");
-		 
+
+		int port = -1;
+		int httpPortNumber = -1;
+		try{
+			if(cmd.hasOption("t")){
+				popt.threads = parsePositiveInt(cmd.getOptionValue("t"), Runtime.getRuntime().availableProcessors());
+			}
+			popt.parseThreads = Math.max(1, popt.threads/4);
+			popt.serializeThreads = Math.max(1, popt.threads/4);
+			popt.queueSize = popt.threads*4;
+			if(cmd.hasOption("pt")){
+				popt.parseThreads = parsePositiveInt(cmd.getOptionValue("pt"), popt.parseThreads);
+			}
+			if(cmd.hasOption("st")){
+				popt.serializeThreads = parsePositiveInt(cmd.getOptionValue("st"), popt.serializeThreads);
+			}
+			if(cmd.hasOption("qs")){
+				popt.queueSize = parsePositiveInt(cmd.getOptionValue("qs"), popt.queueSize);
+			}
+			if(cmd.hasOption("to")){
+				popt.timeoutMillis = parseTimeoutMillis(cmd.getOptionValue("to"));
+			}
+			if(cmd.hasOption("dp")){
+				port = parsePort(cmd.getOptionValue("dp"));
+			}
+			if(cmd.hasOption("hp")){
+				httpPortNumber = parsePort(cmd.getOptionValue("hp"));
+			}
+		}catch(NumberFormatException e){
+			System.err.println(e.getMessage());
+			formatter.printHelp("java -jar " + GLOBAL_SETTINGS.ARTIFACT_NAME + " <options>", options);
+			System.exit(1);
+			return;
+		}
+
+		if(cmd.hasOption("c")){
+			String cachePath = cmd.getOptionValue("c");
+			try{
+				popt.resultCache = ResultCache.open(new File(cachePath), ResultCache.fingerprint(popt));
+			}catch(IOException e){
+				System.err.println("Unable to open cache file " + cachePath + ": " + e.getMessage());
+				System.exit(1);
+				return;
+			}
+		}
+
+		if(cmd.hasOption("nc")){
+			if(popt.inputFile==null){
+				System.err.println("The normalized cache is kept beside the input file, so it needs an input file");
+				System.exit(1);
+				return;
+			}
+			File normPath = NormalizedCache.besideInput(popt.inputFile);
+			try{
+				popt.normalizedCache = NormalizedCache.open(normPath);
+			}catch(IOException e){
+				System.err.println("Unable to open normalized cache file " + normPath + ": " + e.getMessage());
+				System.exit(1);
+				return;
+			}
+		}
+
+		if(cmd.hasOption("ds")){
+			popt.structureDedup = new StructureDedup();
+		}
+
+		if(httpPortNumber>0){
+			int workers = cmd.hasOption("t")? popt.threads : Runtime.getRuntime().availableProcessors();
+			new FeaturizeHttpServer(popt, workers).start(httpPortNumber);
+			//the server threads are daemons, so keep the main thread alive
+			Thread.currentThread().join();
+			return;
+		}
+		if(port>0){
+			popt.inFlight = new SingleFlight<>();
+			new FeaturizeDaemon(popt).listen(port);
+			return;
+		}
+		if(cmd.hasOption("d")){
+			new FeaturizeDaemon(popt).serveStandardStreams();
+			return;
+		}
+
+		if(popt.timeoutMillis>0){
+			warmUp();
+		}
+		try{
+			runInput(popt, formatter, options);
+		}finally{
+			if(popt.resultCache!=null){
+				popt.resultCache.close();
+			}
+			if(popt.normalizedCache!=null){
+				popt.normalizedCache.close();
+			}
+		}
+	}
+
+	private static void runInput(ParsedOptions popt, HelpFormatter formatter, Options options) throws Exception{
 		Stream<String> inputStreamStrings = null;
 
 		if(popt.stdInput){
 			inputStreamStrings = new BufferedReader(
 					new InputStreamReader(System.in, StandardCharsets.UTF_8))
 					.lines();
+			run(inputStreamStrings, popt);
 		}else{
 			try(BufferedReader red = new BufferedReader(
 					new InputStreamReader(new FileInputStream(popt.inputFile), StandardCharsets.UTF_8))){
@@ -1509,6 +2078,48 @@ public class FeaturizeNitrosamine {
 		
 
 
+	}
+
+	/**
+	 * Parses a numeric command line value, where 0 or less
+	 * means the supplied default.
+	 */
+	private static int parsePositiveInt(String value, int defaultValue){
+		int i;
+		try{
+			i = Integer.parseInt(value.trim());
+		}catch(NumberFormatException e){
+			throw new NumberFormatException("Expected a number, found:" + value);
+		}
+		if(i<=0){
+			return defaultValue;
+		}
+		return i;
+	}
+
+	/**
+	 * Parses a positive number of seconds into milliseconds, rounded up so
+	 * even the smallest time limit is at least 1ms instead of no limit.
+	 */
+	private static long parseTimeoutMillis(String value){
+		double seconds;
+		try{
+			seconds = Double.parseDouble(value.trim());
+		}catch(NumberFormatException e){
+			throw new NumberFormatException("Expected a number of seconds, found:" + value);
+		}
+		if(!(seconds>0)){
+			throw new NumberFormatException("Expected a positive number of seconds, found:" + value);
+		}
+		return Math.max(1, (long)Math.ceil(seconds*1000));
+	}
+
+	private static int parsePort(String value){
+		int port = parsePositiveInt(value, -1);
+		if(port<=0 || port>65535){
+			throw new NumberFormatException("Expected a port number, found:" + value);
+		}
+		return port;
 	}
 
 	public static class ParsedOptions{
@@ -1529,6 +2140,44 @@ public class FeaturizeNitrosamine {
 
 		boolean verboseOutput;
 
+		//number of worker threads for featurization, 1 means
+		//everything is done on the calling thread
+		int threads = 1;
+
+		//sizing of the other pipeline stages, only used when
+		//there is more than one featurization thread
+		int parseThreads = 1;
+		int serializeThreads = 1;
+		int queueSize = 4;
+
+		//time budget for featurizing one structure, 0 or less
+		//means no limit
+		long timeoutMillis = 0;
+
+		FeaturizeSettings settings = FeaturizeSettings.fromGlobalSettings();
+
+		//previously computed rows, null means no caching
+		ResultCache resultCache;
+
+		//prepared structures from earlier runs, null means no caching
+		NormalizedCache normalizedCache;
+
+		//lines being featurized right now, so the same structure asked
+		//for at the same time is only done once, null means no sharing
+		SingleFlight<String,List<String>> inFlight;
+
+		//rows of structures already done in this run, null means
+		//every line is featurized
+		StructureDedup structureDedup;
+
+		/**
+		 * Same as the -ds option, for running without a command line.
+		 * @param structureDedup null to featurize every line
+		 */
+		public void setStructureDedup(StructureDedup structureDedup){
+			this.structureDedup=structureDedup;
+		}
+
 	}
 
 	public static void printOnly(Stream<String> inputStream, PrintStream outPw, ParsedOptions parsedOptions) throws Exception{
@@ -1613,162 +2262,337 @@ public class FeaturizeNitrosamine {
 
 
 	public static void run(Stream<String> inputStream, ParsedOptions parsedOptions) throws Exception{
-		setupSTDFilter();
-
-		if(!parsedOptions.noHeaders){
-			inputStream=inputStream.skip(1);
-		}
-		PrintStream outPwF=null; 
+		OutputStream out;
+		boolean closeOut;
 		if(parsedOptions.outputFile!=null){
-			outPwF = new PrintStream(parsedOptions.outputFile);
+			out = new FileOutputStream(parsedOptions.outputFile);
+			closeOut=true;
 		}else{
 			if(parsedOptions.stdOutput){
-				outPwF = System.out;
-				outPwF.flush();
+				System.out.flush();
+				out = new FileOutputStream(FileDescriptor.out);
+				closeOut=false;
+				//the rows are written straight to std out, so anything
+				//else printed has to go elsewhere
+				System.setOut(System.err);
 			}else{
 				//ERROR
 				System.err.println("NO OUTPUT FILE OR STD OUTPUT SPECIFIED, EXITING");
 				System.exit(0);
+				return;
 			}
-		}	
-		PrintStream outPw=outPwF;
+		}
+		setupSTDFilter();
+
+		if(!parsedOptions.noHeaders){
+			inputStream=inputStream.skip(1);
+		}
 
 		if(parsedOptions.printOnly){
+			PrintStream outPw = new PrintStream(new BufferedOutputStream(out, AsyncRowWriter.DEFAULT_BUFFER_SIZE), false, "UTF-8");
 			printOnly(inputStream,outPw, parsedOptions);
 		}else{
-			if(parsedOptions.addHeaders){
-				String headerLine = "Structure_Name"+ "\t" +
-						"Nitrosamine Structure	NNO Instance	"
-						+ (parsedOptions.verboseOutput? "Amine Category\t" : "")
-						+ "Potency Category	Potency Score	"
-						+ "Alpha-Hydrogens	"
-						+ "Alpha-hydrogen score	"
-						+ "Tertiary alpha-carbon?	"
-						+ "Tertiary alpha-carbon score	"
-						+ "Carboxylic acid group anywhere on molecule?	"
-						+ "Carboxylic acid group anywhere on molecule score	NNO in pyrrolidine ring?	"
-						+ "NNO in pyrrolidine ring score	"
-						+ "NNO in 6-membered ring with S?	"
-						+ "NNO in 6-membered ring with S score	"
-						+ "NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine)?	"
-						+ "NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine) score	"
-						+ "NNO in morpholine ring?	"
-						+ "NNO in morpholine ring score	"
-						+ "NNO in a 7-membered ring?	"
-						+ "NNO in a 7-membered ring score	"
-						+ "Chains of >=5-non-H atoms on both sides of NNO?	"
-						+ "Chains of >=5-non-H atoms on both sides of NNO score	"
-						+ "EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone)?	"
-						+ "EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone) score	"
-						+ "EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone)?	"
-						+ "EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone) score	"
-						+ "Beta-hydroxyl on ONLY one side?	"
-						+ "Beta-hydroxyl on ONLY one side score	Beta-hydroxyl on BOTH sides?	"
-						+ "Beta-hydroxyl on BOTH sides score	"
-						+ "Aryl bonded to alpha-carbon?	"
-						+ "Aryl bonded to alpha-carbon score	"
-						+ "Methyl group on beta-carbon?	"
-						+ "Methyl group on beta-carbon score";
-
-				outPw.println(headerLine);
+			try(AsyncRowWriter writer = new AsyncRowWriter(out, closeOut)){
+				if(parsedOptions.addHeaders){
+					writer.accept(headerLine(parsedOptions));
+				}
+
+				if(parsedOptions.threads>1){
+					FeaturizePipeline pipeline = new FeaturizePipeline(parsedOptions.parseThreads, parsedOptions.threads,
+							parsedOptions.serializeThreads, parsedOptions.queueSize);
+					pipeline.run(inputStream, parsedOptions, writer);
+				}else{
+					inputStream.forEach(ss->{
+						featurizeLine(ss, parsedOptions, writer);
+					});
+				}
+			}
+			ResultCache cache = parsedOptions.resultCache;
+			if(cache!=null){
+				System.err.println("Result cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.size() + " entries");
+			}
+			NormalizedCache norm = parsedOptions.normalizedCache;
+			if(norm!=null){
+				System.err.println("Normalized cache: " + norm.getHits() + " hits, " + norm.getMisses() + " misses, " + norm.size() + " entries");
+			}
+			StructureDedup dedup = parsedOptions.structureDedup;
+			if(dedup!=null){
+				System.err.println("Duplicate structures: " + dedup.getHits() + " lines reused, " + dedup.getMisses() + " featurized");
 			}
+		}
+	}
 
-			inputStream.forEach(ss->{
-				String[] cols = ss.trim().split("\t");
-				if(cols.length>=2){
-					Chemical c;
-					List<Chemical> readList= new ArrayList<>();
-					try {
-						String inp=cols[1].trim();
-						c = Chemical.parse(inp);
-					} catch (Exception e1) {
-						return;
-						//throw new RuntimeException(e1);
-					}
+	/**
+	 * The header row written before the featurized output rows.
+	 * 
+	 * @param parsedOptions
+	 * @return
+	 */
+	public static String headerLine(ParsedOptions parsedOptions){
+		return "Structure_Name"+ "\t" +
+				"Nitrosamine Structure	NNO Instance	"
+				+ (parsedOptions.verboseOutput? "Amine Category\t" : "")
+				+ "Potency Category	Potency Score	"
+				+ "Alpha-Hydrogens	"
+				+ "Alpha-hydrogen score	"
+				+ "Tertiary alpha-carbon?	"
+				+ "Tertiary alpha-carbon score	"
+				+ "Carboxylic acid group anywhere on molecule?	"
+				+ "Carboxylic acid group anywhere on molecule score	NNO in pyrrolidine ring?	"
+				+ "NNO in pyrrolidine ring score	"
+				+ "NNO in 6-membered ring with S?	"
+				+ "NNO in 6-membered ring with S score	"
+				+ "NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine)?	"
+				+ "NNO in 5- or 6-membered ring (excluding pyrrolidine, 6-membered S-containing ring and morpholine) score	"
+				+ "NNO in morpholine ring?	"
+				+ "NNO in morpholine ring score	"
+				+ "NNO in a 7-membered ring?	"
+				+ "NNO in a 7-membered ring score	"
+				+ "Chains of >=5-non-H atoms on both sides of NNO?	"
+				+ "Chains of >=5-non-H atoms on both sides of NNO score	"
+				+ "EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone)?	"
+				+ "EWG on alpha-carbon on ONLY one side of NNO (excluding carboxylic acid, aryl and ketone) score	"
+				+ "EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone)?	"
+				+ "EWG on alpha-carbon on BOTH sides of NNO (excluding carboxylic acid, aryl and ketone) score	"
+				+ "Beta-hydroxyl on ONLY one side?	"
+				+ "Beta-hydroxyl on ONLY one side score	Beta-hydroxyl on BOTH sides?	"
+				+ "Beta-hydroxyl on BOTH sides score	"
+				+ "Aryl bonded to alpha-carbon?	"
+				+ "Aryl bonded to alpha-carbon score	"
+				+ "Methyl group on beta-carbon?	"
+				+ "Methyl group on beta-carbon score";
+	}
 
-					if(parsedOptions.removeNitrosamines){
-						removeNitrosamine(c);
-					}
+	/**
+	 * Formats a timed out {@link FeatureResponse} with TIMEOUT as its
+	 * potency category, and the remaining columns left blank, so the
+	 * row still lines up with the headers.
+	 * 
+	 * @param fr
+	 * @param parsedOptions
+	 * @return
+	 */
+	private static String formatTimedOutResponse(FeatureResponse fr, ParsedOptions parsedOptions){
+		String smiles=null;
+		try {
+			smiles = fr.getChemical().toSmiles();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		List<String> cols = new ArrayList<>();
+		cols.add(fr.name);
+		cols.add(smiles);
+		cols.add((fr.count>0)?fr.count+"":"");
+		if(parsedOptions.verboseOutput){
+			cols.add(fr.getType());
+		}
+		cols.add(FeatureResponse.TIMEOUT_TYPE);
+		int ncols = headerLine(parsedOptions).split("\t").length;
+		while(cols.size()<ncols){
+			cols.add("");
+		}
+		return cols.stream().collect(Collectors.joining("\t"));
+	}
 
-					if(parsedOptions.mappedSites && parsedOptions.mapFoundNitrosamine){
-						boolean anyMapped = c.atoms()
-								.filter(att->att.getAtomToAtomMap().isPresent())
-								.findAny().isPresent();
+	/**
+	 * Featurizes a single tab-delimited input line, passing each produced
+	 * output row (without line terminator) to the supplied consumer. Lines
+	 * which can't be parsed produce no rows. This method doesn't touch any
+	 * shared output, so it can be called from several threads at once. If
+	 * the options have in-flight sharing on, a line with the same structure
+	 * as one being featurized on another thread waits for and reuses its rows.
+	 * 
+	 * @param ss
+	 * @param parsedOptions
+	 * @param rowConsumer
+	 */
+	public static void featurizeLine(String ss, ParsedOptions parsedOptions, Consumer<String> rowConsumer){
+		SingleFlight<String,List<String>> flights = parsedOptions.inFlight;
+		String[] cols = ss.trim().split("\t");
+		if(flights==null || cols.length<2){
+			featurizeLineRows(ss, parsedOptions, rowConsumer);
+			return;
+		}
+		//the same structure asked for at the same time is only featurized once
+		String prefix = cols[0] + "\t";
+		List<String> rows;
+		try{
+			rows = flights.call(cols[1].trim() + "\t" + ((cols.length>=3)?cols[2]:""), ()->{
+				List<String> named = new ArrayList<>();
+				featurizeLineRows(ss, parsedOptions, named::add);
+				List<String> unnamed = new ArrayList<>();
+				for(String row: named){
+					unnamed.add(row.substring(prefix.length()));
+				}
+				return unnamed;
+			});
+		}catch(Exception e){
+			e.printStackTrace();
+			return;
+		}
+		rows.forEach(row->rowConsumer.accept(prefix + row));
+	}
 
-						if(!anyMapped){
-							List<Integer> sites = markAllNitrosamines(c);
+	private static void featurizeLineRows(String ss, ParsedOptions parsedOptions, Consumer<String> rowConsumer){
+		ResultCache cache = parsedOptions.resultCache;
+		if(cache!=null){
+			List<String> cached = cache.get(ss);
+			if(cached!=null){
+				cached.forEach(rowConsumer);
+				return;
+			}
+		}
+		StructureDedup dedup = parsedOptions.structureDedup;
+		String dedupKey = (dedup!=null)? dedup.key(ss) : null;
+		if(dedupKey!=null){
+			List<String> found = dedup.get(dedupKey, StructureDedup.name(ss));
+			if(found!=null){
+				found.forEach(rowConsumer);
+				if(cache!=null){
+					cache.put(ss, found);
+				}
+				return;
+			}
+		}
+		List<String> rows = new ArrayList<>();
+		boolean complete = true;
+		List<FeatureJob> jobs = toFeatureJobs(ss, parsedOptions);
+		try {
+			for(FeatureJob fjob: jobs){
+				List<FeatureResponse> resp = fingerprintNitrosamine(fjob, parsedOptions.timeoutMillis);
 
-							for(int m:sites){
-								readList.add(removeNitrosamine(c.copy(), m));
-							}
-						}
-					}
-					if(readList.size()==0){
-						readList.add(c);
+				for(FeatureResponse fr: resp){
+					if(fr.isTimedOut()){
+						complete=false;
 					}
+					String row = formatResponse(fr, parsedOptions);
+					rows.add(row);
+					rowConsumer.accept(row);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			complete=false;
+		}
+		if(cache!=null && complete){
+			cache.put(ss, rows);
+		}
+		if(dedupKey!=null && complete){
+			dedup.put(dedupKey, StructureDedup.name(ss), rows);
+		}
+	}
+
+	/**
+	 * Parses a single tab-delimited input line into the {@link FeatureJob}s
+	 * to fingerprint, in output order. Lines which can't be parsed, or don't
+	 * have a SMILES column, produce no jobs.
+	 * 
+	 * @param ss
+	 * @param parsedOptions
+	 * @return
+	 */
+	public static List<FeatureJob> toFeatureJobs(String ss, ParsedOptions parsedOptions){
+		List<FeatureJob> jobs = new ArrayList<>();
+		String[] cols = ss.trim().split("\t");
+		if(cols.length>=2){
+			Chemical c;
+			List<Chemical> readList= new ArrayList<>();
+			String inp=cols[1].trim();
+			try {
+				c = Chemical.parse(inp);
+			} catch (Exception e1) {
+				return jobs;
+				//throw new RuntimeException(e1);
+			}
 
-					try {
-						for(int ci=0;ci<readList.size();ci++){
-							Chemical c1 = readList.get(ci);
+			if(parsedOptions.removeNitrosamines){
+				removeNitrosamine(c);
+			}
 
-							int fnum=0;
-							if(cols.length>=3){
-								try{
-									int input = Integer.parseInt(cols[2]);
-									fnum=input;
-								}catch(Exception e){
+			if(parsedOptions.mappedSites && parsedOptions.mapFoundNitrosamine){
+				boolean anyMapped = c.atoms()
+						.filter(att->att.getAtomToAtomMap().isPresent())
+						.findAny().isPresent();
 
-								}
+				if(!anyMapped){
+					List<Integer> sites = markAllNitrosamines(c);
 
-							}
-							if(fnum>0 && readList.size()>1 && fnum-1!=ci){
-								continue;
-							}
-							FeatureJob fjob = new FeatureJob(cols[0],c1,fnum, parsedOptions.mappedSites, parsedOptions.addNitrosamines, outPw, (ccc)->{});
-							List<FeatureResponse> resp = fingerprintNitrosamine(fjob);
-
-							resp.forEach(frr->{
-								FeatureResponse fr=frr;
-
-								String smiles=null;
-								try {
-									smiles = fr.getChemical().toSmiles();
-								} catch (IOException e) {
-									e.printStackTrace();
-								}
-
-								fjob.outStream.print(fr.name + "\t");
-								fjob.outStream.print(smiles + "\t");
-								fjob.outStream.print(fr.count + "\t");
-								//TODO: also export other stuff like salt info
-								// if desired
-								if(parsedOptions.verboseOutput){
-									fjob.outStream.print(fr.getType() + "\t");
-								}
-								fjob.outStream.print(fr.getCategoryScore() + "\t");
-								fjob.outStream.print(fr.getSumOfScores() + "\t");
-								fjob.outStream.print(fr.getFeatureSet().values().stream().collect(Collectors.joining("\t")));
-								fjob.outStream.println("");
-								fjob.outStream.flush();
-
-
-							});
-						}
+					for(int m:sites){
+						readList.add(removeNitrosamine(c.copy(), m));
+					}
+				}
+			}
+			if(readList.size()==0){
+				readList.add(c);
+			}
 
+			for(int ci=0;ci<readList.size();ci++){
+				Chemical c1 = readList.get(ci);
 
+				int fnum=0;
+				if(cols.length>=3){
+					try{
+						int input = Integer.parseInt(cols[2]);
+						fnum=input;
+					}catch(Exception e){
+
+					}
 
-					} catch (Exception e) {
-						e.printStackTrace();
-					}					
-				}else{
-					//throw new RuntimeException("Expected 2 columns in input, found:" + cols.length);
 				}
-			});
+				if(fnum>0 && readList.size()>1 && fnum-1!=ci){
+					continue;
+				}
+				FeatureJob fj = new FeatureJob(cols[0],c1,fnum, parsedOptions.mappedSites, parsedOptions.addNitrosamines, null, (ccc)->{}, parsedOptions.settings);
+				if(c1==c && !parsedOptions.removeNitrosamines){
+					fj.setInputSmiles(inp);
+				}
+				fj.setNormalizedCache(parsedOptions.normalizedCache);
+				jobs.add(fj);
+			}
+		}else{
+			//throw new RuntimeException("Expected 2 columns in input, found:" + cols.length);
+		}
+		return jobs;
+	}
 
+	/**
+	 * Formats a {@link FeatureResponse} as a single tab-delimited output
+	 * row, matching the headers written by {@link #run(Stream, ParsedOptions)}.
+	 * 
+	 * @param fr
+	 * @param parsedOptions
+	 * @return
+	 */
+	public static String formatResponse(FeatureResponse fr, ParsedOptions parsedOptions){
+		if(fr.isTimedOut()){
+			return formatTimedOutResponse(fr, parsedOptions);
+		}
+		String smiles=null;
+		try {
+			smiles = fr.getChemical().toSmiles();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(fr.name + "\t");
+		sb.append(smiles + "\t");
+		sb.append(fr.count + "\t");
+		//TODO: also export other stuff like salt info
+		// if desired
+		if(parsedOptions.verboseOutput){
+			sb.append(fr.getType() + "\t");
+		}
+		sb.append(fr.getCategoryScore() + "\t");
+		sb.append(fr.getSumOfScores() + "\t");
+		sb.append(fr.getFeatureSet().values().stream().collect(Collectors.joining("\t")));
+		return sb.toString();
 	}
 
 	public static Optional<FeatureResponse> forMostPotentNitrosamine(Chemical c){
+		return forMostPotentNitrosamine(c, FeaturizeSettings.fromGlobalSettings());
+	}
+
+	public static Optional<FeatureResponse> forMostPotentNitrosamine(Chemical c, FeaturizeSettings settings){
 		c.atoms().forEach(a->a.setAtomToAtomMap(0));
 		List<Integer> sites = markAllNitrosamines(c);
 		if(sites.isEmpty()){
@@ -1781,7 +2605,7 @@ public class FeaturizeNitrosamine {
 		}
 
 		return chems.stream()
-				.map(cc->new FeatureJob(cc))
+				.map(cc->new FeatureJob(cc, settings))
 				.peek(fj->fj.addNitrosamine=false)
 				.peek(fj->fj.useMap=true)
 				.map(fj->{
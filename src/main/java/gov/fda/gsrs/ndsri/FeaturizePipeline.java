@@ -0,0 +1,463 @@
+package gov.fda.gsrs.ndsri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import gov.fda.gsrs.chem.util.ChemUtil;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureJob;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureResponse;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Staged batch pipeline for featurizing many input lines at once:
+ *
+ * <pre>
+ * reader -&gt; parse -&gt; featurize -&gt; serialize -&gt; write
+ * </pre>
+ *
+ * Each stage has its own pool of threads, and the stages are joined by
+ * bounded blocking queues. The reader (the calling thread) also has to
+ * acquire a permit for every line it reads, which is only given back once
+ * that line is written, so the number of lines in memory stays bounded no
+ * matter how large the input is or which stage is the slow one. The writer
+ * puts rows back into input order, so the output is the same as the
+ * single threaded path.
+ * <p>
+ * Each nitrosamine site of a line is featurized as its own job, and
+ * waiting jobs are handed to the workers biggest first (by heavy atom
+ * count), so a few very large structures near the end of the input
+ * don't leave one worker running long after the others are done.
+ * </p>
+ */
+public class FeaturizePipeline {
+
+	private final int parseThreads;
+	private final int featurizeThreads;
+	private final int serializeThreads;
+	private final int queueCapacity;
+
+	public FeaturizePipeline(int parseThreads, int featurizeThreads, int serializeThreads, int queueCapacity) {
+		if(parseThreads<1 || featurizeThreads<1 || serializeThreads<1 || queueCapacity<1){
+			throw new IllegalArgumentException("Pipeline thread counts and queue capacity must be positive");
+		}
+		this.parseThreads = parseThreads;
+		this.featurizeThreads = featurizeThreads;
+		this.serializeThreads = serializeThreads;
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getParseThreads() {
+		return parseThreads;
+	}
+
+	public int getFeaturizeThreads() {
+		return featurizeThreads;
+	}
+
+	public int getSerializeThreads() {
+		return serializeThreads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * The most lines that can be somewhere between being read and
+	 * being written. This is enough to keep every queue full and
+	 * every thread busy.
+	 * @return
+	 */
+	public int getMaxLinesInFlight(){
+		return 3*queueCapacity + parseThreads + featurizeThreads + serializeThreads;
+	}
+
+	private static class Record{
+		private final long seq;
+		private final String line;
+		//marks the end of the input for the writer, in which
+		//case seq is the total number of lines read
+		private final boolean end;
+
+		private List<FeatureJob> jobs = Collections.emptyList();
+		private List<List<FeatureResponse>> responses;
+		private AtomicInteger remainingJobs;
+
+		private List<String> rows = Collections.emptyList();
+		//rows came from the result cache, or an earlier line with the same structure
+		private boolean cached;
+		//key of the structure when deduplicating structures
+		private String dedupKey;
+
+		Record(long seq, String line){
+			this(seq, line, false);
+		}
+
+		private Record(long seq, String line, boolean end){
+			this.seq=seq;
+			this.line=line;
+			this.end=end;
+		}
+
+		static Record end(long total){
+			return new Record(total, null, true);
+		}
+	}
+
+	private static class JobTask{
+		private final Record record;
+		private final int index;
+		//estimated cost, larger jobs are started first
+		private final int cost;
+
+		JobTask(Record record, int index, int cost){
+			this.record=record;
+			this.index=index;
+			this.cost=cost;
+		}
+	}
+
+	//biggest first, and otherwise in input order so the writer isn't held up
+	private static final Comparator<JobTask> LARGEST_FIRST = Comparator.<JobTask>comparingInt(t->-t.cost)
+			.thenComparingLong(t->t.record.seq)
+			.thenComparingInt(t->t.index);
+
+	/**
+	 * Bounded blocking queue that hands out the smallest element
+	 * first by the given order, rather than the oldest.
+	 */
+	private static class BoundedPriorityQueue<T> implements Source<T>{
+		private final PriorityQueue<T> queue;
+		private final int capacity;
+
+		BoundedPriorityQueue(int capacity, Comparator<T> order){
+			this.queue = new PriorityQueue<>(capacity, order);
+			this.capacity=capacity;
+		}
+
+		public synchronized void put(T t) throws InterruptedException{
+			while(queue.size()>=capacity){
+				wait();
+			}
+			queue.add(t);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized T take() throws InterruptedException{
+			while(queue.isEmpty()){
+				wait();
+			}
+			T t = queue.poll();
+			notifyAll();
+			return t;
+		}
+	}
+
+	/**
+	 * Estimated cost of featurizing a job. Ring perception and the path
+	 * searches are worse than linear in the number of atoms, but only
+	 * the order matters here so the heavy atom count is enough.
+	 */
+	private static int estimateCost(FeatureJob job){
+		Chemical c = job.getChemical();
+		return c==null?0:ChemUtil.heavyAtomCount(c);
+	}
+
+	/**
+	 * Runs every line through the pipeline, passing the output rows
+	 * to the row consumer in input order. The row consumer is only
+	 * ever called from a single thread.
+	 *
+	 * @param lines
+	 * @param parsedOptions
+	 * @param rowConsumer
+	 * @throws Exception
+	 */
+	public void run(Stream<String> lines, ParsedOptions parsedOptions, Consumer<String> rowConsumer) throws Exception{
+
+		BlockingQueue<Record> parseQueue = new ArrayBlockingQueue<>(queueCapacity);
+		BoundedPriorityQueue<JobTask> featurizeQueue = new BoundedPriorityQueue<>(queueCapacity, LARGEST_FIRST);
+		BlockingQueue<Record> serializeQueue = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Record> writeQueue = new ArrayBlockingQueue<>(queueCapacity);
+
+		Semaphore inFlight = new Semaphore(getMaxLinesInFlight());
+		AtomicReference<Throwable> writeError = new AtomicReference<>();
+
+		ExecutorService parsePool = Executors.newFixedThreadPool(parseThreads, daemonThreadFactory("featurize-parse"));
+		ExecutorService featurizePool = Executors.newFixedThreadPool(featurizeThreads, daemonThreadFactory("featurize-worker"));
+		ExecutorService serializePool = Executors.newFixedThreadPool(serializeThreads, daemonThreadFactory("featurize-serialize"));
+		ExecutorService writePool = Executors.newSingleThreadExecutor(daemonThreadFactory("featurize-write"));
+
+		try{
+			for(int i=0;i<parseThreads;i++){
+				parsePool.execute(stage(parseQueue::take, r->parse(r, parsedOptions, featurizeQueue, serializeQueue)));
+			}
+			for(int i=0;i<featurizeThreads;i++){
+				featurizePool.execute(stage(featurizeQueue, t->featurize(t, parsedOptions, serializeQueue)));
+			}
+			for(int i=0;i<serializeThreads;i++){
+				serializePool.execute(stage(serializeQueue::take, r->serialize(r, parsedOptions, writeQueue)));
+			}
+			writePool.execute(()->{
+				try{
+					write(writeQueue, inFlight, rowConsumer);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}catch(Throwable t){
+					writeError.set(t);
+					//unblock the reader, nothing else will be written
+					inFlight.release(getMaxLinesInFlight());
+				}
+			});
+
+			long seq=0;
+			Iterator<String> it = lines.iterator();
+			while(it.hasNext() && writeError.get()==null){
+				String line = it.next();
+				inFlight.acquire();
+				parseQueue.put(new Record(seq++, line));
+			}
+			if(writeError.get()==null){
+				writeQueue.put(Record.end(seq));
+			}
+			writePool.shutdown();
+			while(!writePool.awaitTermination(1, TimeUnit.SECONDS)){
+				if(writeError.get()!=null){
+					break;
+				}
+			}
+		}finally{
+			parsePool.shutdownNow();
+			featurizePool.shutdownNow();
+			serializePool.shutdownNow();
+			writePool.shutdownNow();
+		}
+		Throwable t = writeError.get();
+		if(t!=null){
+			if(t instanceof Exception){
+				throw (Exception)t;
+			}
+			throw new RuntimeException(t);
+		}
+	}
+
+	private interface StageTask<T>{
+		void accept(T t) throws InterruptedException;
+	}
+
+	private interface Source<T>{
+		T take() throws InterruptedException;
+	}
+
+	private static <T> Runnable stage(Source<T> in, StageTask<T> task){
+		return ()->{
+			try{
+				while(!Thread.currentThread().isInterrupted()){
+					task.accept(in.take());
+				}
+			}catch(InterruptedException e){
+				//pipeline is shutting down
+			}
+		};
+	}
+
+	private static void parse(Record r, ParsedOptions parsedOptions,
+			BoundedPriorityQueue<JobTask> featurizeQueue, BlockingQueue<Record> serializeQueue) throws InterruptedException{
+		List<String> known;
+		try{
+			r.dedupKey = dedupKey(r.line, parsedOptions);
+			known = knownRows(r.line, r.dedupKey, parsedOptions);
+		}catch(Throwable t){
+			//featurize it as if nothing was known
+			t.printStackTrace();
+			r.dedupKey=null;
+			known=null;
+		}
+		if(known!=null){
+			r.rows=known;
+			r.cached=true;
+			serializeQueue.put(r);
+			return;
+		}
+		List<FeatureJob> jobs;
+		try{
+			jobs = FeaturizeNitrosamine.toFeatureJobs(r.line, parsedOptions);
+		}catch(Throwable t){
+			t.printStackTrace();
+			jobs = Collections.emptyList();
+		}
+		r.jobs = jobs;
+		if(jobs.isEmpty()){
+			serializeQueue.put(r);
+			return;
+		}
+		r.responses = new ArrayList<>(Collections.nCopies(jobs.size(), null));
+		r.remainingJobs = new AtomicInteger(jobs.size());
+		//the record can be finished and cleared by later stages as
+		//soon as the last job is queued, so only use the local list
+		for(int i=0;i<jobs.size();i++){
+			featurizeQueue.put(new JobTask(r, i, estimateCost(jobs.get(i))));
+		}
+	}
+
+	/**
+	 * Key of the line for the structure dedup, or null if it's off or the
+	 * line has no structure column.
+	 */
+	static String dedupKey(String line, ParsedOptions parsedOptions){
+		StructureDedup dedup = parsedOptions.structureDedup;
+		return (dedup!=null)? dedup.key(line) : null;
+	}
+
+	/**
+	 * Rows of the line from the result cache, or from an earlier line with
+	 * the same structure.
+	 * @param dedupKey see {@link #dedupKey(String, ParsedOptions)}
+	 * @return the rows, or null if they have to be worked out
+	 */
+	static List<String> knownRows(String line, String dedupKey, ParsedOptions parsedOptions){
+		ResultCache cache = parsedOptions.resultCache;
+		if(cache!=null){
+			List<String> rows = cache.get(line);
+			if(rows!=null){
+				return rows;
+			}
+		}
+		if(dedupKey!=null){
+			List<String> rows = parsedOptions.structureDedup.get(dedupKey, StructureDedup.name(line));
+			if(rows!=null){
+				remember(line, null, rows, parsedOptions);
+				return rows;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Keeps the rows of a line in the result cache, and for the structure
+	 * dedup if there's a key. A failure is only logged, the record still has
+	 * to get to the writer or the whole run waits for it forever.
+	 */
+	static void remember(String line, String dedupKey, List<String> rows, ParsedOptions parsedOptions){
+		try{
+			ResultCache cache = parsedOptions.resultCache;
+			if(cache!=null){
+				cache.put(line, rows);
+			}
+			if(dedupKey!=null){
+				parsedOptions.structureDedup.put(dedupKey, StructureDedup.name(line), rows);
+			}
+		}catch(Throwable t){
+			t.printStackTrace();
+		}
+	}
+
+	private static void featurize(JobTask t, ParsedOptions parsedOptions, BlockingQueue<Record> serializeQueue) throws InterruptedException{
+		Record r = t.record;
+		List<FeatureResponse> resp = null;
+		try{
+			resp = FeaturizeNitrosamine.fingerprintNitrosamine(r.jobs.get(t.index), parsedOptions.timeoutMillis);
+		}catch(InterruptedException e){
+			throw e;
+		}catch(Throwable e){
+			e.printStackTrace();
+		}
+		//a null entry marks a failed job
+		synchronized(r){
+			r.responses.set(t.index, resp);
+		}
+		if(r.remainingJobs.decrementAndGet()==0){
+			serializeQueue.put(r);
+		}
+	}
+
+	private static void serialize(Record r, ParsedOptions parsedOptions, BlockingQueue<Record> writeQueue) throws InterruptedException{
+		if(r.cached){
+			writeQueue.put(r);
+			return;
+		}
+		List<String> rows = new ArrayList<>();
+		boolean complete = true;
+		try{
+			if(r.responses!=null){
+				List<List<FeatureResponse>> responses;
+				synchronized(r){
+					responses = new ArrayList<>(r.responses);
+				}
+				for(List<FeatureResponse> resp: responses){
+					//same as the sequential path, a failed job
+					//stops any later jobs of the line from being written
+					if(resp==null){
+						complete=false;
+						break;
+					}
+					for(FeatureResponse fr: resp){
+						if(fr.isTimedOut()){
+							complete=false;
+						}
+						rows.add(FeaturizeNitrosamine.formatResponse(fr, parsedOptions));
+					}
+				}
+			}
+		}catch(Throwable t){
+			t.printStackTrace();
+			complete=false;
+		}
+		if(complete){
+			remember(r.line, r.dedupKey, rows, parsedOptions);
+		}
+		r.rows=rows;
+		//release the parsed structures as early as possible
+		r.jobs=null;
+		r.responses=null;
+		writeQueue.put(r);
+	}
+
+	private static void write(BlockingQueue<Record> writeQueue, Semaphore inFlight, Consumer<String> rowConsumer) throws InterruptedException{
+		Map<Long,Record> pending = new HashMap<>();
+		long next=0;
+		long total=-1;
+		while(total<0 || next<total){
+			Record r = writeQueue.take();
+			if(r.end){
+				total=r.seq;
+				continue;
+			}
+			pending.put(r.seq, r);
+			Record nr;
+			while((nr=pending.remove(next))!=null){
+				nr.rows.forEach(rowConsumer);
+				next++;
+				inFlight.release();
+			}
+		}
+	}
+
+	static ThreadFactory daemonThreadFactory(String prefix){
+		AtomicInteger count = new AtomicInteger(0);
+		return r->{
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -0,0 +1,106 @@
+package gov.fda.gsrs.ndsri;
+
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.GLOBAL_SETTINGS;
+
+/**
+ * Immutable settings for one featurization run. A copy is carried by each
+ * {@link FeaturizeNitrosamine.FeatureJob}, so jobs with different settings
+ * can safely be featurized at the same time in one JVM.
+ * <p>
+ * Use {@link #fromGlobalSettings()} for the current values of
+ * {@link GLOBAL_SETTINGS}, and the <code>with</code> methods to
+ * get a changed copy.
+ * </p>
+ *
+ */
+public final class FeaturizeSettings{
+
+	private final boolean considerChargedCOOAsCOOH;
+	private final int maxRingSizeBeforeAcyclicForChain5;
+	private final boolean doExtendedFeaturesToo;
+
+	public FeaturizeSettings(boolean considerChargedCOOAsCOOH, int maxRingSizeBeforeAcyclicForChain5, boolean doExtendedFeaturesToo){
+		this.considerChargedCOOAsCOOH=considerChargedCOOAsCOOH;
+		this.maxRingSizeBeforeAcyclicForChain5=maxRingSizeBeforeAcyclicForChain5;
+		this.doExtendedFeaturesToo=doExtendedFeaturesToo;
+	}
+
+	/**
+	 * A snapshot of the current values in {@link GLOBAL_SETTINGS}.
+	 * @return
+	 */
+	public static FeaturizeSettings fromGlobalSettings(){
+		return new FeaturizeSettings(GLOBAL_SETTINGS.CONSIDER_CHARGED_COO_AS_COOH,
+				GLOBAL_SETTINGS.MAX_RING_SIZE_BEFORE_ACYCLIC_FOR_CHAIN5,
+				GLOBAL_SETTINGS.DO_EXTENDED_FEATURES_TOO);
+	}
+
+	/**
+	 * If true, the uncharged carboxylic groups from salt splitting
+	 * will still be considered acidic. Otherwise only COOH will
+	 * count.
+	 * @return
+	 */
+	public boolean isConsiderChargedCOOAsCOOH(){
+		return considerChargedCOOAsCOOH;
+	}
+
+	/**
+	 * If positive, rings greater than this size will be considered
+	 * acyclic for the "chain5" feature.
+	 * @return
+	 */
+	public int getMaxRingSizeBeforeAcyclicForChain5(){
+		return maxRingSizeBeforeAcyclicForChain5;
+	}
+
+	/**
+	 * Whether to calculate additional features that
+	 * have occasionally been useful.
+	 * @return
+	 */
+	public boolean isDoExtendedFeaturesToo(){
+		return doExtendedFeaturesToo;
+	}
+
+	public FeaturizeSettings withConsiderChargedCOOAsCOOH(boolean considerChargedCOOAsCOOH){
+		return new FeaturizeSettings(considerChargedCOOAsCOOH, maxRingSizeBeforeAcyclicForChain5, doExtendedFeaturesToo);
+	}
+
+	public FeaturizeSettings withMaxRingSizeBeforeAcyclicForChain5(int maxRingSizeBeforeAcyclicForChain5){
+		return new FeaturizeSettings(considerChargedCOOAsCOOH, maxRingSizeBeforeAcyclicForChain5, doExtendedFeaturesToo);
+	}
+
+	public FeaturizeSettings withDoExtendedFeaturesToo(boolean doExtendedFeaturesToo){
+		return new FeaturizeSettings(considerChargedCOOAsCOOH, maxRingSizeBeforeAcyclicForChain5, doExtendedFeaturesToo);
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if(this==o){
+			return true;
+		}
+		if(!(o instanceof FeaturizeSettings)){
+			return false;
+		}
+		FeaturizeSettings other = (FeaturizeSettings)o;
+		return considerChargedCOOAsCOOH==other.considerChargedCOOAsCOOH
+				&& maxRingSizeBeforeAcyclicForChain5==other.maxRingSizeBeforeAcyclicForChain5
+				&& doExtendedFeaturesToo==other.doExtendedFeaturesToo;
+	}
+
+	@Override
+	public int hashCode(){
+		int h = Boolean.hashCode(considerChargedCOOAsCOOH);
+		h = 31*h + maxRingSizeBeforeAcyclicForChain5;
+		h = 31*h + Boolean.hashCode(doExtendedFeaturesToo);
+		return h;
+	}
+
+	@Override
+	public String toString(){
+		return "considerChargedCOOAsCOOH=" + considerChargedCOOAsCOOH
+				+ ",maxRingSizeBeforeAcyclicForChain5=" + maxRingSizeBeforeAcyclicForChain5
+				+ ",doExtendedFeaturesToo=" + doExtendedFeaturesToo;
+	}
+}
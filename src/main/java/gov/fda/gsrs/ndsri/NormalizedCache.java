@@ -0,0 +1,331 @@
+package gov.fda.gsrs.ndsri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.AtomCoordinates;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * On-disk cache of the expensive parts of preparing a structure for
+ * featurization, so a rerun over the same input with different options
+ * doesn't have to do them again: the generated 2D coordinates, and the
+ * InChIKeys of the components that salt stripping looks up.
+ * <p>
+ * Parsing, cleanup and aromatization are cheap next to those, so they are
+ * still done on every run. That also means the structures are exactly the
+ * ones a run without the cache would make, only the coordinates are put back
+ * instead of generated, and the component keys are read instead of worked out.
+ * </p>
+ * <p>
+ * Entries are keyed by the SMILES and atom maps of the structure to be
+ * featurized, which doesn't depend on any settings. The file is a binary
+ * append-only log with one length-prefixed entry per structure. Only an
+ * index of entry positions is held in memory.
+ * </p>
+ */
+public class NormalizedCache implements Closeable{
+
+	//change when what's stored or how it's used changes, so old files are started over
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * What's stored for one structure.
+	 */
+	public static class Entry{
+		//null if the structure already had coordinates
+		private final double[] coordinates;
+		private final List<String> componentKeys;
+
+		public Entry(double[] coordinates, List<String> componentKeys){
+			this.coordinates=coordinates;
+			this.componentKeys=componentKeys;
+		}
+
+		/**
+		 * Records the coordinates of every atom of the given structure.
+		 * @param c
+		 * @return x and y of each atom in turn
+		 */
+		public static double[] coordinatesOf(Chemical c){
+			double[] xy = new double[c.getAtomCount()*2];
+			for(int i=0;i<c.getAtomCount();i++){
+				AtomCoordinates ac = c.getAtom(i).getAtomCoordinates();
+				xy[i*2]=ac.getX();
+				xy[i*2+1]=ac.getY();
+			}
+			return xy;
+		}
+
+		/**
+		 * Puts the stored coordinates back on the given structure.
+		 * @param c
+		 * @return false if there are no stored coordinates, or they are for a
+		 *         different number of atoms
+		 */
+		public boolean applyCoordinates(Chemical c){
+			if(coordinates==null || coordinates.length!=c.getAtomCount()*2){
+				return false;
+			}
+			for(int i=0;i<c.getAtomCount();i++){
+				Atom a = c.getAtom(i);
+				a.setAtomCoordinates(AtomCoordinates.valueOf(coordinates[i*2], coordinates[i*2+1]));
+			}
+			return true;
+		}
+
+		/**
+		 * InChIKeys of the components of the structure, in the order salt
+		 * stripping finds them.
+		 * @return
+		 */
+		public List<String> getComponentKeys(){
+			return componentKeys;
+		}
+	}
+
+	private final File file;
+
+	//64 bit hash of the key -> offset of the entry in the file
+	private final Map<Long,Long> index = new HashMap<>();
+	private final RandomAccessFile reader;
+	private final OutputStream writer;
+	private long length;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private NormalizedCache(File file) throws IOException{
+		this.file=file;
+		if(!file.exists()){
+			File parent = file.getAbsoluteFile().getParentFile();
+			if(parent!=null){
+				parent.mkdirs();
+			}
+			file.createNewFile();
+		}
+		this.length=loadIndex();
+		this.reader=new RandomAccessFile(file, "r");
+		this.writer=new BufferedOutputStream(new FileOutputStream(file, true));
+		if(length==0){
+			DataOutputStream out = new DataOutputStream(writer);
+			out.writeInt(FORMAT_VERSION);
+			out.flush();
+			length=4;
+		}
+	}
+
+	/**
+	 * Opens (or makes) the cache in the given file.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static NormalizedCache open(File file) throws IOException{
+		return new NormalizedCache(file);
+	}
+
+	/**
+	 * The cache file kept beside the given input file.
+	 * @param inputFile
+	 * @return
+	 */
+	public static File besideInput(String inputFile){
+		return new File(inputFile + ".norm");
+	}
+
+	/**
+	 * Key of a structure, its SMILES and the atom maps, which SMILES leaves out.
+	 * @param c
+	 * @return
+	 * @throws IOException if the SMILES can't be made
+	 */
+	public static String key(Chemical c) throws IOException{
+		StringBuilder key = new StringBuilder(c.toSmiles());
+		key.append('|');
+		for(int i=0;i<c.getAtomCount();i++){
+			int map = c.getAtom(i).getAtomToAtomMap().orElse(0);
+			if(map!=0){
+				key.append(i).append(':').append(map).append(',');
+			}
+		}
+		return key.toString();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public synchronized int size(){
+		return index.size();
+	}
+
+	/**
+	 * The entry for the given key, or null if it isn't in the cache.
+	 * @param key see {@link #key(Chemical)}
+	 * @return
+	 */
+	public Entry get(String key){
+		Entry e;
+		try{
+			e = read(key);
+		}catch(IOException ex){
+			ex.printStackTrace();
+			e = null;
+		}
+		if(e==null){
+			misses.incrementAndGet();
+		}else{
+			hits.incrementAndGet();
+		}
+		return e;
+	}
+
+	/**
+	 * Adds the entry for the given key, unless there already is one.
+	 * @param key see {@link #key(Chemical)}
+	 * @param e
+	 */
+	public void put(String key, Entry e){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try{
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(key);
+			if(e.coordinates==null){
+				out.writeInt(-1);
+			}else{
+				out.writeInt(e.coordinates.length);
+				for(double d: e.coordinates){
+					out.writeDouble(d);
+				}
+			}
+			out.writeInt(e.componentKeys.size());
+			for(String k: e.componentKeys){
+				out.writeUTF(k);
+			}
+			out.flush();
+		}catch(IOException ex){
+			//keys too long to write, leave it out
+			return;
+		}
+		long h = hash(key);
+		synchronized(this){
+			if(index.containsKey(h)){
+				return;
+			}
+			try{
+				DataOutputStream out = new DataOutputStream(writer);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+				out.flush();
+				index.put(h, length);
+				length += 4 + bytes.size();
+			}catch(IOException ex){
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private synchronized Entry read(String key) throws IOException{
+		Long offset = index.get(hash(key));
+		if(offset==null){
+			return null;
+		}
+		reader.seek(offset);
+		byte[] b = new byte[reader.readInt()];
+		reader.readFully(b);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+		if(!key.equals(in.readUTF())){
+			return null;
+		}
+		int n = in.readInt();
+		double[] coordinates = null;
+		if(n>=0){
+			coordinates = new double[n];
+			for(int i=0;i<n;i++){
+				coordinates[i]=in.readDouble();
+			}
+		}
+		int nk = in.readInt();
+		List<String> keys = new ArrayList<>(nk);
+		for(int i=0;i<nk;i++){
+			keys.add(in.readUTF());
+		}
+		return new Entry(coordinates, keys);
+	}
+
+	/**
+	 * Reads the positions of every entry, and cuts off a partly written last
+	 * entry, if there is one. A file from a different format version is
+	 * emptied.
+	 * @return the length of the valid part of the file
+	 * @throws IOException
+	 */
+	private long loadIndex() throws IOException{
+		long offset=0;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16))){
+			if(in.readInt()!=FORMAT_VERSION){
+				offset=0;
+			}else{
+				offset=4;
+				while(true){
+					int size = in.readInt();
+					byte[] b = new byte[size];
+					in.readFully(b);
+					String key = new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+					index.put(hash(key), offset);
+					offset += 4 + size;
+				}
+			}
+		}catch(EOFException e){
+			//end of the file, or of the last complete entry
+		}
+		if(offset<file.length()){
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+				raf.setLength(offset);
+			}
+		}
+		return offset;
+	}
+
+	//64 bit FNV-1a
+	private static long hash(String s){
+		long h = 0xcbf29ce484222325L;
+		for(int i=0;i<s.length();i++){
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	@Override
+	public synchronized void close() throws IOException{
+		try{
+			writer.close();
+		}finally{
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package gov.fda.gsrs.ndsri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.GLOBAL_SETTINGS;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+
+/**
+ * On-disk cache of output rows, so structures that were already featurized
+ * in an earlier run don't have to be done again.
+ * <p>
+ * Entries are keyed by the SMILES and NNO instance columns of the input line,
+ * along with a fingerprint of the featurizer version and every option and
+ * setting that changes the output. The name column isn't part of the key, it's put back into the rows
+ * when they are read. The exact input text is used rather than a canonical
+ * form like an InChIKey, because atom maps in the input decide which sites
+ * are featurized, and the output structure is written from the input.
+ * </p>
+ * <p>
+ * The file is an append-only log with one entry per line. Only an index of
+ * entry positions is held in memory, the rows are read from the file when
+ * needed. Results that timed out or failed are never cached.
+ * </p>
+ */
+public class ResultCache implements Closeable{
+
+	//change when the layout of the file changes, changes to the features
+	//go in GLOBAL_SETTINGS.FEATURIZER_VERSION
+	private static final String FORMAT_VERSION = "1";
+
+	//separates the key and the rows of an entry
+	private static final char SEP = '\u001E';
+
+	private final File file;
+	private final String fingerprint;
+
+	//64 bit hash of the key -> offset of the entry in the file
+	private final Map<Long,Long> index = new HashMap<>();
+	private final RandomAccessFile reader;
+	private final OutputStream writer;
+	private long length;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private ResultCache(File file, String fingerprint) throws IOException{
+		this.file=file;
+		this.fingerprint=fingerprint;
+		if(!file.exists()){
+			File parent = file.getAbsoluteFile().getParentFile();
+			if(parent!=null){
+				parent.mkdirs();
+			}
+			file.createNewFile();
+		}
+		this.length=loadIndex();
+		this.reader=new RandomAccessFile(file, "r");
+		this.writer=new BufferedOutputStream(new FileOutputStream(file, true));
+	}
+
+	/**
+	 * Opens (or makes) the cache in the given file. Only entries made with the
+	 * same fingerprint are used.
+	 * @param file
+	 * @param fingerprint see {@link #fingerprint(ParsedOptions)}
+	 * @return
+	 * @throws IOException
+	 */
+	public static ResultCache open(File file, String fingerprint) throws IOException{
+		return new ResultCache(file, fingerprint);
+	}
+
+	/**
+	 * Everything that changes the output rows for a given input line.
+	 * @param parsedOptions
+	 * @return
+	 */
+	public static String fingerprint(ParsedOptions parsedOptions){
+		String all = FORMAT_VERSION + "|" + GLOBAL_SETTINGS.ARTIFACT_NAME
+				+ "|featurizer=" + GLOBAL_SETTINGS.FEATURIZER_VERSION
+				+ "|mappedSites=" + parsedOptions.mappedSites
+				+ "|mapFoundNitrosamine=" + parsedOptions.mapFoundNitrosamine
+				+ "|removeNitrosamines=" + parsedOptions.removeNitrosamines
+				+ "|addNitrosamines=" + parsedOptions.addNitrosamines
+				+ "|verboseOutput=" + parsedOptions.verboseOutput
+				+ "|" + parsedOptions.settings;
+		return Long.toHexString(hash(all));
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public synchronized int size(){
+		return index.size();
+	}
+
+	/**
+	 * Gets the cached rows for an input line, with the name of this line, or
+	 * null if it isn't in the cache.
+	 * @param line
+	 * @return
+	 */
+	public List<String> get(String line){
+		String[] cols = line.trim().split("\t");
+		String key = key(cols);
+		if(key==null){
+			return null;
+		}
+		String entry;
+		try{
+			entry = read(hash(key));
+		}catch(IOException e){
+			e.printStackTrace();
+			entry = null;
+		}
+		if(entry==null || !entry.startsWith(key) || (entry.length()>key.length() && entry.charAt(key.length())!=SEP)){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		List<String> rows = new ArrayList<>();
+		int start = key.length();
+		while(start<entry.length()){
+			int end = entry.indexOf(SEP, start+1);
+			if(end<0){
+				end = entry.length();
+			}
+			rows.add(cols[0] + "\t" + entry.substring(start+1, end));
+			start = end;
+		}
+		return rows;
+	}
+
+	/**
+	 * Caches the output rows of an input line. Rows must start with
+	 * the name column of the line.
+	 * @param line
+	 * @param rows
+	 */
+	public void put(String line, List<String> rows){
+		String[] cols = line.trim().split("\t");
+		String key = key(cols);
+		if(key==null){
+			return;
+		}
+		String prefix = cols[0] + "\t";
+		StringBuilder sb = new StringBuilder(key);
+		for(String row: rows){
+			if(!row.startsWith(prefix) || row.indexOf(SEP)>=0 || row.indexOf('\n')>=0){
+				return;
+			}
+			sb.append(SEP).append(row, prefix.length(), row.length());
+		}
+		sb.append('\n');
+		byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+		long h = hash(key);
+		synchronized(this){
+			if(index.containsKey(h)){
+				return;
+			}
+			try{
+				writer.write(b);
+				writer.flush();
+				index.put(h, length);
+				length += b.length;
+			}catch(IOException e){
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private String key(String[] cols){
+		if(cols.length<2){
+			return null;
+		}
+		String key = fingerprint + "\t" + cols[1].trim() + "\t" + ((cols.length>=3)?cols[2]:"");
+		if(key.indexOf(SEP)>=0){
+			return null;
+		}
+		return key;
+	}
+
+	private synchronized String read(long h) throws IOException{
+		Long offset = index.get(h);
+		if(offset==null){
+			return null;
+		}
+		reader.seek(offset);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		outer:
+		while((n=reader.read(buf))>0){
+			for(int i=0;i<n;i++){
+				if(buf[i]=='\n'){
+					line.write(buf, 0, i);
+					break outer;
+				}
+			}
+			line.write(buf, 0, n);
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the positions of every entry, and cuts off a partly
+	 * written last entry, if there is one.
+	 * @return the length of the valid part of the file
+	 * @throws IOException
+	 */
+	private long loadIndex() throws IOException{
+		long offset=0;
+		long pos=0;
+		ByteArrayOutputStream key = new ByteArrayOutputStream();
+		boolean inKey=true;
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file), 1<<16)){
+			int b;
+			while((b=in.read())>=0){
+				pos++;
+				if(b=='\n'){
+					String k = new String(key.toByteArray(), StandardCharsets.UTF_8);
+					index.put(hash(k), offset);
+					key.reset();
+					inKey=true;
+					offset=pos;
+				}else if(inKey){
+					//SEP is ASCII, so it can't be part of a multi-byte character
+					if(b==SEP){
+						inKey=false;
+					}else{
+						key.write(b);
+					}
+				}
+			}
+		}
+		if(offset<pos){
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+				raf.setLength(offset);
+			}
+		}
+		return offset;
+	}
+
+	//64 bit FNV-1a
+	private static long hash(String s){
+		long h = 0xcbf29ce484222325L;
+		for(int i=0;i<s.length();i++){
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	@Override
+	public synchronized void close() throws IOException{
+		try{
+			writer.close();
+		}finally{
+			reader.close();
+		}
+	}
+}
@@ -118,10 +118,10 @@ public class SaltInfo{
 			"IUBSYMUCCVWXPE-UHFFFAOYSA-N	4	Metoprolol	AM	";
 	
 	
-	String inchiKey;
-	String name;
-	String includeType;
-	String subType;
+	final String inchiKey;
+	final String name;
+	final String includeType;
+	final String subType;
 	public SaltInfo(String inchiKey, String name, String includeType, String subType){
 		this.inchiKey = inchiKey;
 		this. name = name;
@@ -149,6 +149,16 @@ public class SaltInfo{
 		return subType;
 	}
 
+	/**
+	 * Copy of this salt info with a different include type. Salt infos are
+	 * shared through the salt table, so they are never changed in place.
+	 * @param includeType
+	 * @return
+	 */
+	public SaltInfo withIncludeType(String includeType) {
+		return new SaltInfo(inchiKey, name, includeType, subType);
+	}
+
 	public static Map<String, SaltInfo> defaultSaltMap(){
 		Map<String,SaltInfo> saltTable;
 	
@@ -0,0 +1,111 @@
+package gov.fda.gsrs.ndsri;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one computation at a time per key. Asking for a key that is
+ * already being computed waits for that computation and gets its result,
+ * rather than doing the same work again. Nothing is kept once a computation
+ * is done, so this only joins up requests that overlap in time, see
+ * {@link ResultCache} for keeping results.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class SingleFlight<K,V> {
+
+	private final ConcurrentHashMap<K,CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * Starts the computation for the key, unless it's already running.
+	 * @param key
+	 * @param start starts the computation, only called if it isn't running
+	 * @return the running computation
+	 */
+	public CompletableFuture<V> submit(K key, Supplier<CompletableFuture<V>> start){
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if(running!=null){
+			shared.incrementAndGet();
+			return running;
+		}
+		started.incrementAndGet();
+		CompletableFuture<V> f;
+		try{
+			f = start.get();
+		}catch(Throwable t){
+			f = new CompletableFuture<>();
+			f.completeExceptionally(t);
+		}
+		f.whenComplete((v,t)->{
+			inFlight.remove(key, mine);
+			if(t!=null){
+				mine.completeExceptionally(t);
+			}else{
+				mine.complete(v);
+			}
+		});
+		return mine;
+	}
+
+	/**
+	 * Computes the value for the key on this thread, unless it's already
+	 * being computed, in which case this waits for that.
+	 * @param key
+	 * @param compute
+	 * @return
+	 * @throws Exception what compute threw, here or on the thread running it
+	 */
+	public V call(K key, Callable<V> compute) throws Exception{
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if(running!=null){
+			shared.incrementAndGet();
+			try{
+				return running.get();
+			}catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				if(cause instanceof Exception){
+					throw (Exception)cause;
+				}
+				throw e;
+			}
+		}
+		started.incrementAndGet();
+		try{
+			V v = compute.call();
+			mine.complete(v);
+			return v;
+		}catch(Throwable t){
+			mine.completeExceptionally(t);
+			throw t;
+		}finally{
+			inFlight.remove(key, mine);
+		}
+	}
+
+	/**
+	 * Number of computations that were run.
+	 * @return
+	 */
+	public long getStarted(){
+		return started.get();
+	}
+
+	/**
+	 * Number of requests that were given the result of a computation
+	 * already running for someone else.
+	 * @return
+	 */
+	public long getShared(){
+		return shared.get();
+	}
+}
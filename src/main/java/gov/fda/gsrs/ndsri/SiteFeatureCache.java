@@ -0,0 +1,122 @@
+package gov.fda.gsrs.ndsri;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.fda.gsrs.chem.util.AtomEnvironment;
+import gov.fda.gsrs.chem.util.AtomTest;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.MoleculeFeatures;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Remembers the site features of nitrogen environments that were already
+ * featurized, since the same groups (N-methylpiperazine, morpholine, ...) come
+ * up again and again across a library.
+ * <p>
+ * Site features only look a limited number of bonds out from the nitrogen
+ * (the chain of 5 check goes furthest), so they are keyed by an
+ * {@link AtomEnvironment} of that radius. The key also has the settings,
+ * the whole structure features that go into the output, and for a nitrogen
+ * in a ring, the smallest ring sizes of its bonds and its ring text, since
+ * which way round the ring is read depends on the atom order. Sites with very
+ * large neighborhoods, or explicit hydrogens that make the chain search go
+ * further, are always worked out in full.
+ * </p>
+ */
+public class SiteFeatureCache {
+
+	//bonds out from the nitrogen that any site feature looks at
+	public static final int RADIUS = 6;
+	private static final int MAX_ATOMS = 96;
+
+	private final int maxSize;
+	private final Map<String,List<FeatureScorePairInstance>> features;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public SiteFeatureCache(int maxSize){
+		if(maxSize<1){
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		this.maxSize=maxSize;
+		this.features=new LinkedHashMap<String,List<FeatureScorePairInstance>>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,List<FeatureScorePairInstance>> eldest){
+				return size()>SiteFeatureCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Site features for the given site, from the cache if an equivalent
+	 * site was already done.
+	 * @param c
+	 * @param atList the site, a single nitrogen
+	 * @param settings
+	 * @param molecule
+	 * @return the features, which must not be changed
+	 * @throws Exception
+	 */
+	public List<FeatureScorePairInstance> getFeatures(Chemical c, List<AtomTest> atList, FeaturizeSettings settings, MoleculeFeatures molecule) throws Exception{
+		String key = key(atList, settings, molecule);
+		if(key==null){
+			return FeaturizeNitrosamine.calculateSiteFeatures(c, atList, settings, molecule);
+		}
+		synchronized(features){
+			List<FeatureScorePairInstance> found = features.get(key);
+			if(found!=null){
+				hits.incrementAndGet();
+				return found;
+			}
+		}
+		misses.incrementAndGet();
+		List<FeatureScorePairInstance> computed = Collections.unmodifiableList(FeaturizeNitrosamine.calculateSiteFeatures(c, atList, settings, molecule));
+		synchronized(features){
+			features.put(key, computed);
+		}
+		return computed;
+	}
+
+	private static String key(List<AtomTest> atList, FeaturizeSettings settings, MoleculeFeatures molecule){
+		if(atList.size()!=1){
+			return null;
+		}
+		AtomTest site = atList.get(0);
+		String env = AtomEnvironment.key(molecule.getRings(), site.get(), RADIUS, MAX_ATOMS);
+		if(env==null){
+			return null;
+		}
+		return settings + "|" + molecule.getCarboxylType()
+				+ "|" + FeaturizeNitrosamine.getSiteRingKey(site, molecule.getRings())
+				+ "|" + env;
+	}
+
+	public int size(){
+		synchronized(features){
+			return features.size();
+		}
+	}
+
+	/**
+	 * Drops every entry and zeroes the hit and miss counts.
+	 */
+	public void clear(){
+		synchronized(features){
+			features.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+}
@@ -0,0 +1,135 @@
+package gov.fda.gsrs.ndsri;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the output rows of structures that were already featurized in
+ * this run, so input lines with the same structure as an earlier line, like
+ * one compound listed under several ids, are only featurized once. Their
+ * rows are the earlier line's rows with the name column of the line.
+ * <p>
+ * Lines are keyed by the structure column exactly as written, and the NNO
+ * instance column. The structure column of the output and the numbering
+ * of the sites both follow the order the atoms are written in, so the same
+ * structure written another way (or as another salt form) is featurized
+ * again rather than given rows that don't match its input.
+ * </p>
+ * <p>
+ * Only the most recently used structures are kept, so memory stays bounded
+ * for any size of input. A duplicate of a structure that was dropped is just
+ * featurized again.
+ * </p>
+ */
+public class StructureDedup {
+
+	public static final int DEFAULT_MAX_SIZE = 100000;
+
+	private final int maxSize;
+	//key -> rows without the name column
+	private final Map<String,List<String>> rows;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public StructureDedup(){
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public StructureDedup(int maxSize){
+		if(maxSize<1){
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		this.maxSize=maxSize;
+		this.rows=new LinkedHashMap<String,List<String>>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,List<String>> eldest){
+				return size()>StructureDedup.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * The key of the structure of an input line.
+	 * @param line
+	 * @return the key, or null if the line has no structure column
+	 */
+	public String key(String line){
+		String[] cols = line.trim().split("\t");
+		if(cols.length<2){
+			return null;
+		}
+		return cols[1].trim() + "\t" + ((cols.length>=3)?cols[2]:"");
+	}
+
+	/**
+	 * Rows of an earlier line with the same key, with the given name, or null
+	 * if there wasn't one.
+	 * @param key see {@link #key(String)}
+	 * @param name name column of the line
+	 * @return
+	 */
+	public List<String> get(String key, String name){
+		List<String> found;
+		synchronized(rows){
+			found = rows.get(key);
+		}
+		if(found==null){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		List<String> named = new ArrayList<>(found.size());
+		for(String row: found){
+			named.add(name + "\t" + row);
+		}
+		return named;
+	}
+
+	/**
+	 * Remembers the rows of a line. Rows must start with the name column of
+	 * the line.
+	 * @param key see {@link #key(String)}
+	 * @param name name column of the line
+	 * @param lineRows
+	 */
+	public void put(String key, String name, List<String> lineRows){
+		String prefix = name + "\t";
+		List<String> stripped = new ArrayList<>(lineRows.size());
+		for(String row: lineRows){
+			if(!row.startsWith(prefix)){
+				return;
+			}
+			stripped.add(row.substring(prefix.length()));
+		}
+		synchronized(rows){
+			rows.put(key, stripped);
+		}
+	}
+
+	/**
+	 * Name column of an input line, as written in its output rows.
+	 * @param line
+	 * @return
+	 */
+	public static String name(String line){
+		return line.trim().split("\t")[0];
+	}
+
+	public int size(){
+		synchronized(rows){
+			return rows.size();
+		}
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+}
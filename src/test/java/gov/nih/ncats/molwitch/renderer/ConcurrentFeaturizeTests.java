@@ -0,0 +1,151 @@
+package gov.nih.ncats.molwitch.renderer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import gov.fda.gsrs.ndsri.AsyncFeaturizer;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureJob;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureResponse;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+import gov.nih.ncats.molwitch.Chemical;
+
+import static org.junit.Assert.*;
+
+/**
+ * Featurizes the structures from {@link FeatureParsingTests} from many
+ * threads at once, and checks the results are the same as doing them
+ * one at a time.
+ */
+public class ConcurrentFeaturizeTests {
+
+	private static final List<String> SMILES = Arrays.asList(
+			"[NH:1]1C2=CC=CC=C2N=C1C3=CSC=N3",
+			"NC1=NC2=C(N=CN2[C@@H]3C[C@H](CO)C=C3)C(NC4CC4)=N1",
+			"OS(O)(=O)=O.NC1=NC2=C(N=CN2[C@@H]3C[C@H](CO)C=C3)C(NC4CC4)=N1",
+			"OS(O)(=O)=O.NC1=NC2=C(N=CN2[C@@H]3C[C@H](CO)C=C3)C(NC4CC4)=N1.NC5=NC6=C(N=CN6[C@@H]7C[C@H](CO)C=C7)C([NH:43]C8CC8)=N5",
+			"O.O.O.O.O.O.[Na+].[Na+].COC1=CC([NH:1]C2=NC=C(F)C(NC3=NC4=C(OC(C)(C)C(=O)N4COP([O-])([O-])=O)C=C3)=N2)=CC(OC)=C1OC",
+			"O[C@H]([C@@H](O)C(O)=O)C(O)=O.COC1=CC=C(C[C@@H](C)[NH:20]C[C@H](O)C2=CC=C(O)C(NC=O)=C2)C=C1",
+			"OC(=O)\\C=C\\C(O)=O.COC1=NC2=CC=C(Br)C=C2C=C1[C@@H](C3=CC=CC=C3)[C@@](O)(CC[N:33](C)C)C4=C5C=CC=CC5=CC=C4",
+			"C[C@H]([NH:3]C1=C2N=CNC2=NC=N1)C3=CC4=C(C(Cl)=CC=C4)C(=O)N3C5=CC=CC=C5",
+			"CN1C=C[NH:5]C1=S",
+			"N1CCCCC1",
+			"N1CCNCC1",
+			"N1CCCCCCCC1",
+			"c1ccc2c(c1)c(=O)cc[nH]2",
+			"Nc1nc(=O)c2c(NCC(CNc3ccc(cc3)C(=O)N[C@@H](CCC(O)=O)C(O)=O)=N2)[nH]1",
+			//salts from the "Exclude All" part of the salt table
+			"CC([O-])=O.C1CNCCN1",
+			"CC([O-])=O.CNC1CCCCC1"
+			);
+
+	private static String describe(String smiles) throws Exception{
+		FeatureJob fj = new FeatureJob(Chemical.parse(smiles));
+		List<FeatureResponse> resp = FeaturizeNitrosamine.fingerprintNitrosamine(fj);
+		return resp.stream()
+				.map(fr->fr.getType() + "\t" + fr.getCategoryScore() + "\t"
+						+ (fr.getSaltInfo()==null?"":fr.getSaltInfo().getName() + "/" + fr.getSaltInfo().getIncludeType()) + "\t"
+						+ fr.getFeatureSet())
+				.collect(Collectors.joining("\n"));
+	}
+
+	@Test
+	public void testSameResultsFromManyThreads() throws Exception {
+		Map<String,String> expected = new LinkedHashMap<>();
+		for(String smi: SMILES){
+			expected.put(smi, describe(smi));
+		}
+
+		List<String> work = new ArrayList<>();
+		for(int i=0;i<6;i++){
+			work.addAll(SMILES);
+		}
+		Collections.shuffle(work, new Random(1234));
+
+		ExecutorService es = Executors.newFixedThreadPool(8);
+		try{
+			List<Future<String>> results = new ArrayList<>();
+			for(String smi: work){
+				results.add(es.submit(()->describe(smi)));
+			}
+			for(int i=0;i<work.size();i++){
+				assertEquals(work.get(i), expected.get(work.get(i)), results.get(i).get(5, TimeUnit.MINUTES));
+			}
+		}finally{
+			es.shutdownNow();
+		}
+
+		//and nothing shared was changed along the way
+		for(String smi: SMILES){
+			assertEquals(smi, expected.get(smi), describe(smi));
+		}
+	}
+
+	@Test
+	public void testJobOverTimeBudgetGivesTimedOutRow() throws Exception {
+		FeaturizeNitrosamine.warmUp();
+		//a 30 residue peptide takes far longer than a millisecond
+		StringBuilder peptide = new StringBuilder();
+		for(int i=0;i<30;i++){
+			peptide.append("N[C@@H](CCCCN)C(=O)");
+		}
+		peptide.append("O");
+		FeatureJob fj = new FeatureJob("pep", Chemical.parse(peptide.toString()), 2, false, false, null, t->{});
+		List<FeatureResponse> resp = FeaturizeNitrosamine.fingerprintNitrosamine(fj, 1);
+		assertEquals(1, resp.size());
+		assertTrue(resp.get(0).isTimedOut());
+		assertEquals(FeatureResponse.TIMEOUT_TYPE, resp.get(0).getType());
+		assertEquals("pep", resp.get(0).getName());
+
+		ParsedOptions options = new ParsedOptions();
+		String[] row = FeaturizeNitrosamine.formatResponse(resp.get(0), options).split("\t", -1);
+		assertEquals(FeaturizeNitrosamine.headerLine(options).split("\t").length, row.length);
+		assertEquals("pep", row[0]);
+		assertEquals("2", row[2]);
+		assertEquals(FeatureResponse.TIMEOUT_TYPE, row[3]);
+	}
+
+	@Test
+	public void testIdenticalLinesInFlightShareOneFeaturization() throws Exception {
+		ParsedOptions options = new ParsedOptions();
+		ExecutorService es = Executors.newSingleThreadExecutor();
+		try(AsyncFeaturizer featurizer = new AsyncFeaturizer(es, 0)){
+			//the one worker is still on the first line when the rest are submitted
+			List<CompletableFuture<List<FeatureResponse>>> futures = new ArrayList<>();
+			for(int i=0;i<8;i++){
+				futures.add(featurizer.submitLine("line" + i + "\tN1CCNCC1", options));
+			}
+			List<FeatureResponse> first = futures.get(0).get(5, TimeUnit.MINUTES);
+			assertEquals(2, first.size());
+			for(int i=0;i<futures.size();i++){
+				List<FeatureResponse> resp = futures.get(i).get(5, TimeUnit.MINUTES);
+				assertEquals(first.size(), resp.size());
+				for(int j=0;j<resp.size();j++){
+					assertEquals("line" + i, resp.get(j).getName());
+					assertEquals(FeaturizeNitrosamine.formatResponse(first.get(j), options).replaceFirst("line0", "line" + i),
+							FeaturizeNitrosamine.formatResponse(resp.get(j), options));
+					if(i>0){
+						assertNotSame(first.get(j).getChemical(), resp.get(j).getChemical());
+					}
+				}
+			}
+			assertEquals(1, featurizer.getInFlight().getStarted());
+			assertEquals(7, featurizer.getInFlight().getShared());
+		}finally{
+			es.shutdownNow();
+		}
+	}
+}
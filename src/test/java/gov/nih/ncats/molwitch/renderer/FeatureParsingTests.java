@@ -2,7 +2,10 @@ package gov.nih.ncats.molwitch.renderer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -13,11 +16,18 @@ import org.apache.commons.io.IOUtils;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import gov.fda.gsrs.chem.util.AtomEnvironment;
 import gov.fda.gsrs.chem.util.AtomTest;
 import gov.fda.gsrs.chem.util.BondTest;
+import gov.fda.gsrs.chem.util.ChemUtil;
+import gov.fda.gsrs.chem.util.MolGraph;
+import gov.fda.gsrs.chem.util.RingIndex;
 import gov.fda.gsrs.ndsri.FeaturizeNitrosamine;
 import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureJob;
 import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.FeatureResponse;
+import gov.fda.gsrs.ndsri.FeaturizeSettings;
+import gov.fda.gsrs.ndsri.SaltInfo;
+import gov.nih.ncats.common.Tuple;
 import gov.nih.ncats.molwitch.Chemical;
 
 import static org.junit.Assert.*;
@@ -154,6 +164,43 @@ public class FeatureParsingTests {
     	
     }
     
+    @Test
+    public void testSettingsArePerJob() throws Exception {
+    	FeaturizeSettings extended = FeaturizeSettings.fromGlobalSettings().withDoExtendedFeaturesToo(true);
+    	FeaturizeSettings basic = extended.withDoExtendedFeaturesToo(false);
+    	
+    	FeatureJob fjExtended = new FeatureJob(Chemical.parse("N1CCNCC1"), extended);
+    	FeatureJob fjBasic = new FeatureJob(Chemical.parse("N1CCNCC1"), basic);
+    	
+    	FeatureResponse respExtended = FeaturizeNitrosamine.fingerprintNitrosamine(fjExtended).get(0);
+    	FeatureResponse respBasic = FeaturizeNitrosamine.fingerprintNitrosamine(fjBasic).get(0);
+    	
+    	assertEquals("YES" ,respExtended.getFeature(FeaturizeNitrosamine.FeaturePairRegistry.PIPERAZINE.getFeatureName()).orElse(null));
+    	assertFalse(respBasic.getFeature(FeaturizeNitrosamine.FeaturePairRegistry.PIPERAZINE.getFeatureName()).isPresent());
+    }
+    
+    @Test
+    public void testSaltStripFromTextMatchesStructure() throws Exception {
+    	String[] salts = {
+    			"O[C@H]([C@@H](O)C(O)=O)C(O)=O.COC1=CC=C(C[C@@H](C)[NH:20]C[C@H](O)C2=CC=C(O)C(NC=O)=C2)C=C1",
+    			"Cl.Cl.O.CN1CCNCC1",
+    			"[Na+].CC([O-])=O.C1CCNCC1",
+    			"C1CC.C1CNC",
+    			"N1CCNCC1"
+    	};
+    	for(String smi: salts){
+    		Chemical c = Chemical.parse(smi);
+    		for(int i=0;i<2;i++){
+    			//second time around the fragments come from the cache
+    			Tuple<SaltInfo,Chemical> fromStructure = FeaturizeNitrosamine.saltStrip(c.copy(), true);
+    			Tuple<SaltInfo,Chemical> fromText = FeaturizeNitrosamine.saltStrip(c.copy(), true, smi);
+    			assertEquals(smi, fromStructure.k().getInchiKey(), fromText.k().getInchiKey());
+    			assertEquals(smi, fromStructure.k().getName(), fromText.k().getName());
+    			assertEquals(smi, fromStructure.v().toSmiles(), fromText.v().toSmiles());
+    		}
+    	}
+    }
+
     @Test
     public void testCarboxylicAcidOnSaltDoesNotCount() throws Exception {
     	Chemical c1= Chemical.parse("O[C@H]([C@@H](O)C(O)=O)C(O)=O.COC1=CC=C(C[C@@H](C)[NH:20]C[C@H](O)C2=CC=C(O)C(NC=O)=C2)C=C1");
@@ -286,6 +333,43 @@ public class FeatureParsingTests {
 
     }
     
+    @Test
+    public void testTypingAfterDimethylSiteSeesWholeStructurePass() throws Exception {
+    	//featurizing the dimethyl site changes the aromaticity of the pyrimidinone,
+    	//the secondary amine has to be typed on the structure as it is after that
+    	Chemical c1= Chemical.parse("CN(C)Cc1cc(=O)n(C)c(NC2CC2)n1");
+    	    
+    	FeatureJob fj = new FeatureJob(c1);
+    	
+    	List<FeatureResponse> resp = FeaturizeNitrosamine.fingerprintNitrosamine(fj);
+    	
+    	assertEquals(2,resp.size());
+    	assertEquals("D. Dimethyl-Amines" ,resp.get(0).getType());
+    	assertEquals("C. Nitrosamide-like" ,resp.get(1).getType());
+    }
+    
+    @Test
+    public void testAromaticNitrogenTypesUnchanged() throws Exception {
+    	//types from before the typing was moved onto graph snapshots, for
+    	//structures whose aromatic nitrogens depend on which snapshot is read
+    	String[][] expected = new String[][]{
+    		{"CN(C)Cc1cc(=O)n(C)c(NC2CC2)n1", "D. Dimethyl-Amines", "C. Nitrosamide-like"},
+    		{"CN(C)CCc1c[nH]c2ccccc12", "D. Dimethyl-Amines", "B. Aromatic Secondary Amine"},
+    		{"CN(C)Cc1ccc(=O)[nH]c1", "D. Dimethyl-Amines"},
+    		{"CN(C)Cc1cc(=O)[nH]c(=O)[nH]1", "D. Dimethyl-Amines"},
+    		{"c1ccc2c(c1)c(=O)cc[nH]2", "A. Secondary Amine"},
+    		{"O=c1nc[nH]c2c1cn[nH]2", "B. Aromatic Secondary Amine"},
+    		{"CN(C)CC1=CC(=O)N(C)C(NC)=N1", "D. Dimethyl-Amines", "C. Nitrosamide-like"},
+    		{"O=c1cc[nH]c(=S)[nH]1", "C. Nitrosamide-like"},
+    		{"CN(C)Cc1nc2ccccc2c(=O)n1CC1CCNCC1", "D. Dimethyl-Amines", "A. Secondary Amine"},
+    	};
+    	for(String[] e: expected){
+    		List<FeatureResponse> resp = FeaturizeNitrosamine.fingerprintNitrosamine(new FeatureJob(Chemical.parse(e[0])));
+    		List<String> types = resp.stream().map(r->r.getType()).collect(Collectors.toList());
+    		assertEquals(e[0], Arrays.asList(e).subList(1, e.length), types);
+    	}
+    }
+    
     @Test
     public void testCOOHIsNoOnALLOPURINOL() throws Exception {
     	Chemical c1= Chemical.parse("O=c1nc[nH]c2c1cn[nH]2");
@@ -385,6 +469,121 @@ public class FeatureParsingTests {
 		assertTrue( resp.isEmpty());
 	}
 
+	@Test
+	public void testSymmetryClassesOfPiperazines() throws Exception {
+		//both nitrogens of piperazine are the same, but not with a methyl next to one
+		int[] sym = AtomEnvironment.symmetryClasses(new RingIndex(Chemical.parse("C1CNCCN1")));
+		assertEquals(sym[2], sym[5]);
+		assertEquals(sym[0], sym[3]);
+
+		int[] asym = AtomEnvironment.symmetryClasses(new RingIndex(Chemical.parse("CC1CNCCN1")));
+		assertNotEquals(asym[3], asym[6]);
+	}
+
+	@Test
+	public void testSitesOnlyRefinementMergesGetTheirOwnFeatures() throws Exception {
+		//three copies of cyclopropyl-CH2-NH-pentyl-cyclopropyl, with the cyclopropanes
+		//of two copies unrolled into shared cyclohexanes. Every atom has the same
+		//neighbor counts as in one copy, so refinement can't tell the nitrogens apart,
+		//but only the ones on a cyclohexane have a chain of 5 on both sides
+		Chemical c = Chemical.parse("C1CC1CNCCCCCC2CCC(CC2)CCCCCNCC3CCC(CC3)CNCCCCCC4CC4");
+		int[] classes = AtomEnvironment.symmetryClasses(new RingIndex(c));
+		assertEquals(classes[4], classes[21]);
+		assertEquals(classes[4], classes[30]);
+
+		List<FeatureResponse> resp = FeaturizeNitrosamine.fingerprintNitrosamine(new FeatureJob(c));
+		assertEquals(3, resp.size());
+		String chain5 = FeaturizeNitrosamine.FeaturePairRegistry.CHAIN5_BOTH.getFeatureName();
+		assertEquals("NO", resp.get(0).getFeature(chain5).orElse(null));
+		assertEquals("YES", resp.get(1).getFeature(chain5).orElse(null));
+		assertEquals("YES", resp.get(2).getFeature(chain5).orElse(null));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testRingSizesMatchBondSearch() throws Exception {
+		String[] smiles = {"C12C3C4C1C5C2C3C45", "C1C2CC3CC1CC(C2)C3", "C1CCC2(CC1)CCNCC2", "c1ccc2cc3ccccc3cc2c1",
+				"C1CCCCCCCCCCCC1NC1CC1", "C1CC2CCC1CC2", "N1CCN2CCN(CC2)CC1", "CC(=O)NCC(=O)NC(C)C(=O)O",
+				"C1CC2CC3CC4CC5CC1C2C3C45"};
+		for(String smi: smiles){
+			Chemical c = Chemical.parse(smi);
+			for(int max=3;max<=14;max++){
+				assertEquals(smi + " up to " + max, ChemUtil.getSmallestRingSizeForEachBondByBondSearch(c, max),
+						ChemUtil.getSmallestRingSizeForEachBond(c, max));
+			}
+		}
+	}
+
+	@Test
+	public void testMolGraphAnswersLikeAtoms() throws Exception {
+		String[] smiles = {"CC(=O)[O-].C[N+](C)(C)C", "OS(=O)(=O)CCNC(=O)OCC", "OP(O)(=O)OC[C@H]1OC(CC1O)n1cnc2c(N)ncnc12",
+				"O=[N+]([O-])OCCNCC#N", "CC(=N)c1ccsc1NC1CC1", "[H]N(C)C(=O)C=CC(F)(F)F", "O=C1C=CC(=O)N1", "CCN(CC)N=O"};
+		for(String smi: smiles){
+			Chemical c = Chemical.parse(smi);
+			c.aromatize();
+			MolGraph graph = MolGraph.of(c);
+			for(int i=0;i<c.getAtomCount();i++){
+				AtomTest fromAtom = AtomTest.of(c.getAtom(i));
+				AtomTest fromGraph = graph.atomTest(i);
+				for(Method m: AtomTest.class.getMethods()){
+					if(m.getParameterCount()==0 && (m.getReturnType()==boolean.class || m.getReturnType()==int.class)
+							&& !m.getName().equals("hashCode")){
+						assertEquals(smi + " atom " + i + " " + m.getName(), m.invoke(fromAtom), m.invoke(fromGraph));
+					}
+				}
+				assertEquals(fromAtom.getNeighbors().collect(Collectors.toList()), fromGraph.getNeighbors().collect(Collectors.toList()));
+				assertEquals(fromAtom.getBonds().collect(Collectors.toList()), fromGraph.getBonds().collect(Collectors.toList()));
+			}
+		}
+	}
+
+	@Test
+	public void testGraphSearchDistancesMatchAtoms() throws Exception {
+		Chemical c = Chemical.parse("CCCCCCCCCCCCN1CCC(CC1)c1ccc2ccccc2c1.CO");
+		MolGraph graph = MolGraph.of(c);
+		for(int i=0;i<c.getAtomCount();i++){
+			for(int j=0;j<c.getAtomCount();j++){
+				assertEquals(i + "-" + j, AtomTest.of(c.getAtom(i)).getDistanceTo(AtomTest.of(c.getAtom(j))),
+						graph.atomTest(i).getDistanceTo(graph.atomTest(j)));
+			}
+		}
+		//paths come back with the atom first, and don't go through excluded atoms
+		LinkedList<AtomTest> path = graph.atomTest(0).getFirstPathTo(graph.atomTest(11));
+		assertEquals(12, path.size());
+		assertEquals(c.getAtom(11), path.getFirst().get());
+		assertEquals(c.getAtom(0), path.getLast().get());
+		Set<AtomTest> exclude = new HashSet<>(Arrays.asList(graph.atomTest(5)));
+		graph.atomTest(0).getBreadthFirstPathsUntil(l->{
+			assertNotEquals(c.getAtom(6), l.peek().get());
+			return true;
+		}, exclude);
+	}
+
+	@Test
+	public void testMolGraphHandsOutOneWrapperPerAtomAndBond() throws Exception {
+		Chemical c = Chemical.parse("O=C1CCN(CC1)c1ccc2ccccc2c1C#N");
+		c.aromatize();
+		MolGraph graph = MolGraph.of(c);
+		for(int i=0;i<c.getAtomCount();i++){
+			AtomTest at = graph.atomTest(i);
+			assertSame(at, graph.atomTest(i));
+			assertEquals(AtomTest.of(c.getAtom(i)), at);
+			assertEquals(at, AtomTest.of(c.getAtom(i)));
+			assertEquals(AtomTest.of(c.getAtom(i)).hashCode(), at.hashCode());
+			at.getBonds().forEach(bt->{
+				assertSame(bt, graph.bondTest(graph.indexOf(bt.get())));
+				BondTest plain = BondTest.of(bt.get());
+				assertEquals(plain, bt);
+				assertEquals(plain.hashCode(), bt.hashCode());
+				assertEquals(plain.isInRing(), bt.isInRing());
+				assertEquals(plain.isAromatic(), bt.isAromatic());
+				assertEquals(plain.getType(), bt.getType());
+				assertEquals(plain.getOtherAtom(AtomTest.of(c.getAtom(graph.indexOf(at.get())))), bt.getOtherAtom(at));
+				assertEquals(plain.getNeighborBonds().collect(Collectors.toSet()), bt.getNeighborBonds().collect(Collectors.toSet()));
+			});
+		}
+	}
+
 	@Test
 	public void testNitrosamine() throws Exception {
 		Chemical testChemical = Chemical.parse("CCN(CC)N=O");
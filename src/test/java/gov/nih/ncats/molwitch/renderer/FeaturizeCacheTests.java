@@ -0,0 +1,218 @@
+package gov.nih.ncats.molwitch.renderer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+import gov.fda.gsrs.chem.util.AtomTest;
+import gov.fda.gsrs.chem.util.InChIKeyCache;
+import gov.fda.gsrs.ndsri.FeatureScorePairInstance;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.MoleculeFeatures;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+import gov.fda.gsrs.ndsri.FeaturizePipeline;
+import gov.fda.gsrs.ndsri.NormalizedCache;
+import gov.fda.gsrs.ndsri.FeaturizeSettings;
+import gov.fda.gsrs.ndsri.ResultCache;
+import gov.fda.gsrs.ndsri.SiteFeatureCache;
+import gov.fda.gsrs.ndsri.StructureDedup;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the ways of skipping work give the rows featurizing from
+ * scratch gives.
+ */
+public class FeaturizeCacheTests {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static List<String> featurize(String line, ParsedOptions options){
+		List<String> rows = new ArrayList<>();
+		FeaturizeNitrosamine.featurizeLine(line, options, rows::add);
+		return rows;
+	}
+
+	@Test
+	public void testDedupDoesNotShareRowsBetweenAtomOrders() throws Exception {
+		String[][] pairs = new String[][]{
+			//the sites are numbered in atom order, so instance 1 is a different site
+			{"a\tCNCCCNC(C)C", "b\tCC(C)NCCCNC"},
+			//the structure column follows the input order
+			{"a\tCCNCc1ccccc1", "b\tc1ccccc1CNCC"},
+		};
+		for(String[] pair: pairs){
+			ParsedOptions dedupOptions = new ParsedOptions();
+			StructureDedup dedup = new StructureDedup();
+			dedupOptions.setStructureDedup(dedup);
+			featurize(pair[0], dedupOptions);
+			List<String> expected = featurize(pair[1], new ParsedOptions());
+			assertFalse(expected.isEmpty());
+			assertEquals(pair[1], expected, featurize(pair[1], dedupOptions));
+			assertEquals(0, dedup.getHits());
+		}
+	}
+
+	@Test
+	public void testDedupSharesRowsOfRepeatedLines() throws Exception {
+		ParsedOptions dedupOptions = new ParsedOptions();
+		StructureDedup dedup = new StructureDedup();
+		dedupOptions.setStructureDedup(dedup);
+		featurize("a\tCNCCCNC(C)C", dedupOptions);
+		List<String> again = featurize("b\tCNCCCNC(C)C", dedupOptions);
+		assertEquals(1, dedup.getHits());
+		assertEquals(2, again.size());
+		assertEquals(featurize("b\tCNCCCNC(C)C", new ParsedOptions()), again);
+	}
+
+	@Test
+	public void testPipelineFinishesWhenRememberingRowsFails() throws Exception {
+		List<String> lines = Arrays.asList("a\tCNCCCNC(C)C", "b\tN1CCNCC1", "c\tCNCCCNC(C)C", "d\tCCNCc1ccccc1", "e\tN1CCNCC1");
+		List<String> expected = new ArrayList<>();
+		for(String line: lines){
+			expected.addAll(featurize(line, new ParsedOptions()));
+		}
+
+		//one fails on every lookup, the other on every put
+		StructureDedup[] broken = new StructureDedup[]{
+			new StructureDedup(){
+				@Override
+				public List<String> get(String key, String name){
+					throw new IllegalStateException("lookup failed");
+				}
+			},
+			new StructureDedup(){
+				@Override
+				public void put(String key, String name, List<String> lineRows){
+					throw new IllegalStateException("put failed");
+				}
+			}
+		};
+		ExecutorService es = Executors.newSingleThreadExecutor();
+		try{
+			for(StructureDedup dedup: broken){
+				ParsedOptions options = new ParsedOptions();
+				options.setStructureDedup(dedup);
+				List<String> rows = Collections.synchronizedList(new ArrayList<>());
+				Future<?> run = es.submit(()->{
+					new FeaturizePipeline(1, 2, 1, 2).run(lines.stream(), options, rows::add);
+					return null;
+				});
+				run.get(5, TimeUnit.MINUTES);
+				assertEquals(expected, rows);
+			}
+		}finally{
+			es.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testResultCacheReadsBackRowsOnlyForSameFingerprint() throws Exception {
+		File file = new File(tmp.getRoot(), "results.cache");
+		String fingerprint = ResultCache.fingerprint(new ParsedOptions());
+		List<String> rows = featurize("a\tCNCCCNC(C)C", new ParsedOptions());
+		assertEquals(2, rows.size());
+		try(ResultCache cache = ResultCache.open(file, fingerprint)){
+			cache.put("a\tCNCCCNC(C)C", rows);
+		}
+
+		try(ResultCache cache = ResultCache.open(file, fingerprint)){
+			assertEquals(1, cache.size());
+			assertEquals(featurize("b\tCNCCCNC(C)C", new ParsedOptions()), cache.get("b\tCNCCCNC(C)C"));
+			assertNull(cache.get("b\tCNCCCNC(C)C\t1"));
+		}
+		//results from other options or another featurizer version don't match
+		try(ResultCache cache = ResultCache.open(file, fingerprint + "x")){
+			assertNull(cache.get("b\tCNCCCNC(C)C"));
+			assertEquals(1, cache.getMisses());
+		}
+	}
+
+	@Test
+	public void testInChIKeyCacheGivesToolkitKeyAndStaysBounded() throws Exception {
+		InChIKeyCache cache = new InChIKeyCache(2);
+		Chemical chloride = Chemical.parse("[Cl-]");
+		String expected = chloride.toInchi().getKey();
+		assertEquals(expected, cache.getKey(chloride));
+		assertEquals(expected, cache.getKey(Chemical.parse("[Cl-]")));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		for(String smi: new String[]{"[Na+]", "O", "CCO"}){
+			assertEquals(Chemical.parse(smi).toInchi().getKey(), cache.getKey(Chemical.parse(smi)));
+		}
+		assertEquals(2, cache.size());
+	}
+
+	private static List<String> siteFeatures(SiteFeatureCache cache, String smiles, int site) throws Exception{
+		Chemical c = Chemical.parse(smiles);
+		FeaturizeSettings settings = FeaturizeSettings.fromGlobalSettings();
+		MoleculeFeatures molecule = new MoleculeFeatures(c, settings);
+		molecule.compute();
+		List<String> found = new ArrayList<>();
+		for(FeatureScorePairInstance f: cache.getFeatures(c, Arrays.asList(AtomTest.of(c.getAtom(site))), settings, molecule)){
+			found.add(f.getPair().getFeatureName() + "=" + f.getValue() + ":" + f.getScore());
+		}
+		return found;
+	}
+
+	@Test
+	public void testSiteFeatureCacheHitGivesFeaturesOfMiss() throws Exception {
+		//same neighborhood of the N-methyl nitrogen, the chains only differ past the cache radius
+		String first = "CN1CCN(CC1)CCCCCCCC";
+		String second = "CN1CCN(CC1)CCCCCCCCO";
+		SiteFeatureCache cache = new SiteFeatureCache(16);
+		siteFeatures(cache, first, 1);
+		List<String> hit = siteFeatures(cache, second, 1);
+		assertFalse(hit.isEmpty());
+		assertEquals(1, cache.getHits());
+
+		SiteFeatureCache fresh = new SiteFeatureCache(16);
+		assertEquals(siteFeatures(fresh, second, 1), hit);
+		assertEquals(0, fresh.getHits());
+	}
+
+	@Test
+	public void testNormalizedCacheReadsBackEntriesAfterReopening() throws Exception {
+		File file = new File(tmp.getRoot(), "in.txt.norm");
+		Chemical c = Chemical.parse("CN1CCN(CC1)C(=O)c1ccccc1.Cl");
+		c.generateCoordinates();
+		String key = NormalizedCache.key(c);
+		double[] xy = NormalizedCache.Entry.coordinatesOf(c);
+		List<String> componentKeys = Arrays.asList("KEY-ONE", "KEY-TWO");
+		try(NormalizedCache cache = NormalizedCache.open(file)){
+			cache.put(key, new NormalizedCache.Entry(xy, componentKeys));
+		}
+
+		try(NormalizedCache cache = NormalizedCache.open(file)){
+			assertEquals(1, cache.size());
+			NormalizedCache.Entry e = cache.get(key);
+			assertNotNull(e);
+			assertEquals(componentKeys, e.getComponentKeys());
+			Chemical reparsed = Chemical.parse("CN1CCN(CC1)C(=O)c1ccccc1.Cl");
+			assertTrue(e.applyCoordinates(reparsed));
+			assertArrayEquals(xy, NormalizedCache.Entry.coordinatesOf(reparsed), 0);
+		}
+	}
+
+	@Test
+	public void testWarmUpLeavesSharedCachesEmpty() throws Exception {
+		FeaturizeNitrosamine.warmUp();
+		assertEquals(0, FeaturizeNitrosamine.SITE_FEATURE_CACHE.size());
+		assertEquals(0, FeaturizeNitrosamine.COMPONENT_KEY_CACHE.size());
+		assertEquals(0, FeaturizeNitrosamine.FRAGMENT_KEY_CACHE.size());
+	}
+}
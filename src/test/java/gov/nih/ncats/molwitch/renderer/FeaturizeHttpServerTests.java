@@ -0,0 +1,109 @@
+package gov.nih.ncats.molwitch.renderer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import gov.fda.gsrs.ndsri.FeaturizeHttpServer;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine;
+import gov.fda.gsrs.ndsri.FeaturizeNitrosamine.ParsedOptions;
+import gov.fda.gsrs.ndsri.StructureDedup;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that requests to the HTTP server give the rows of the same lines
+ * in an input file.
+ */
+public class FeaturizeHttpServerTests {
+
+	private static String body(HttpURLConnection con) throws Exception{
+		InputStream in = (con.getResponseCode()<400)? con.getInputStream() : con.getErrorStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		int n;
+		while((n=in.read(b))>0){
+			bytes.write(b, 0, n);
+		}
+		in.close();
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String url(HttpServer server, String path){
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path;
+	}
+
+	@Test
+	public void testNameWithTabIsRejected() throws Exception {
+		ParsedOptions options = new ParsedOptions();
+		HttpServer server = new FeaturizeHttpServer(options, 1).start(0);
+		try{
+			String name = URLEncoder.encode("a\tCCCCNCC", "UTF-8");
+			HttpURLConnection con = (HttpURLConnection) new URL(url(server, "/featurize?smiles=CNC&name=" + name)).openConnection();
+			assertEquals(400, con.getResponseCode());
+		}finally{
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testMalformedQueryIsRejected() throws Exception {
+		HttpServer server = new FeaturizeHttpServer(new ParsedOptions(), 1).start(0);
+		try{
+			for(String query: new String[]{"smiles=%E", "smiles=C%zzC", "smiles=CNC&name=a%"}){
+				HttpURLConnection con = (HttpURLConnection) new URL(url(server, "/featurize?" + query)).openConnection();
+				assertEquals(query, 400, con.getResponseCode());
+			}
+		}finally{
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testBatchUsesStructureDedup() throws Exception {
+		ParsedOptions options = new ParsedOptions();
+		StructureDedup dedup = new StructureDedup();
+		options.setStructureDedup(dedup);
+		HttpServer server = new FeaturizeHttpServer(options, 2).start(0);
+		try{
+			HttpURLConnection first = (HttpURLConnection) new URL(url(server, "/featurize/batch")).openConnection();
+			first.setRequestMethod("POST");
+			first.setDoOutput(true);
+			try(OutputStream out = first.getOutputStream()){
+				out.write("a\tCNCCCNC(C)C\n".getBytes(StandardCharsets.UTF_8));
+			}
+			body(first);
+			long hits = dedup.getHits();
+
+			HttpURLConnection second = (HttpURLConnection) new URL(url(server, "/featurize/batch")).openConnection();
+			second.setRequestMethod("POST");
+			second.setDoOutput(true);
+			try(OutputStream out = second.getOutputStream()){
+				out.write("b\tCNCCCNC(C)C\n".getBytes(StandardCharsets.UTF_8));
+			}
+			String rows = body(second);
+			assertEquals(hits+1, dedup.getHits());
+
+			List<String> expected = new ArrayList<>();
+			FeaturizeNitrosamine.featurizeLine("b\tCNCCCNC(C)C", new ParsedOptions(), expected::add);
+			assertFalse(expected.isEmpty());
+			StringBuilder sb = new StringBuilder();
+			for(String row: expected){
+				sb.append(row).append(System.lineSeparator());
+			}
+			assertEquals(sb.toString(), rows);
+		}finally{
+			server.stop(0);
+		}
+	}
+}